@@ -0,0 +1,166 @@
+package dev.zeith.immich;
+
+import com.google.gson.Gson;
+import dev.zeith.immich.cfg.FolderConfig;
+import dev.zeith.immich.io.*;
+import dev.zeith.immich.log.LogWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.net.http.HttpClient;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-tick work of {@link FolderCheckService} that does not touch the network:
+ * filename filtering over synthetic name lists, full and incremental directory scans and timestamp remapping.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TickBenchmark
+{
+	static FolderCheckService createService(Path root)
+			throws IOException
+	{
+		var engine = new ImmichEngine(HttpClient.newHttpClient(), new Gson(), "http://localhost:2283", "bench");
+		engine.setMediaTypes(Map.of(
+				"image", Set.of(".png", ".jpg", ".jpeg", ".webp"),
+				"video", Set.of(".mp4", ".mov", ".webm")
+		));
+		var config = FolderConfig.createVRChat().withPath(root.toString()).revalidate();
+		var journal = UploadJournal.open(Files.createTempFile("immich-bench", ".journal"));
+		return new FolderCheckService(engine, new UploadLimiter(4, 256), new AlbumBatcher(engine, 250, 3600), journal, config);
+	}
+	
+	static String syntheticName(int i, Random random)
+	{
+		return switch(random.nextInt(10))
+		{
+			case 0 -> "desktop.ini";
+			case 1 -> "IMG_" + i + ".jpg";
+			case 2 -> "VRChat_" + i + ".txt";
+			default -> "VRChat_2025-%02d-%02d_%02d-%02d-%02d.%03d_3840x2160.png".formatted(
+					1 + random.nextInt(12), 1 + random.nextInt(28),
+					random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000)
+			);
+		};
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Names
+	{
+		@Param({"10000", "100000", "1000000"})
+		public int entries;
+		
+		FolderCheckService service;
+		String[] names;
+		
+		@Setup
+		public void setup()
+				throws IOException
+		{
+			service = createService(Path.of("."));
+			var random = new Random(entries);
+			names = new String[entries];
+			for(int i = 0; i < entries; i++)
+				names[i] = syntheticName(i, random);
+		}
+		
+		@TearDown
+		public void tearDown()
+				throws IOException
+		{
+			service.albums.close();
+			service.journal.close();
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Directory
+	{
+		@Param({"10000", "100000"})
+		public int entries;
+		
+		FolderCheckService service;
+		Path root;
+		File remapTarget;
+		
+		@Setup
+		public void setup()
+				throws IOException
+		{
+			root = Files.createTempDirectory("immich-bench");
+			var random = new Random(entries);
+			for(int i = 0; i < entries; i++)
+			{
+				var dir = root.resolve("d" + (i % 100));
+				Files.createDirectories(dir);
+				var file = dir.resolve(syntheticName(i, random));
+				if(!Files.exists(file)) Files.createFile(file);
+				// make everything look settled
+				Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(0L));
+			}
+			remapTarget = Files.createFile(root.resolve("VRChat_2025-04-13_03-09-28.123_3840x2160.png")).toFile();
+			service = createService(root);
+			
+			// remapping logs a line per file, which is not what is being measured here
+			LogWriter.DEFAULT.setLevel(dev.zeith.immich.log.Level.WARN);
+		}
+		
+		@TearDown
+		public void tearDown()
+				throws IOException
+		{
+			LogWriter.DEFAULT.setLevel(dev.zeith.immich.log.Level.INFO);
+			service.albums.close();
+			service.journal.close();
+			try(var walk = Files.walk(root))
+			{
+				walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
+	
+	@Benchmark
+	public void filterNames(Names state, Blackhole bh)
+	{
+		var service = state.service;
+		for(String name : state.names)
+			bh.consume(service.isCandidateName(name));
+	}
+	
+	/**
+	 * Scans in the windows a tick hands to the pipeline.
+	 */
+	static void scan(FolderCheckService service, Blackhole bh)
+			throws IOException
+	{
+		service.scanner.scan(service.immich.getBulkCheckBatchSize() * FolderCheckService.WINDOW_BATCHES, bh::consume);
+	}
+	
+	@Benchmark
+	public void fullScan(Directory state, Blackhole bh)
+			throws IOException
+	{
+		state.service.scanner.reset();
+		scan(state.service, bh);
+	}
+	
+	@Benchmark
+	public void incrementalScan(Directory state, Blackhole bh)
+			throws IOException
+	{
+		scan(state.service, bh);
+	}
+	
+	@Benchmark
+	public void remapTimestamps(Directory state)
+	{
+		state.service.remapTimestamps(state.remapTarget);
+	}
+}
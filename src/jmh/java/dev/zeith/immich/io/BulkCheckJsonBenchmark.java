@@ -0,0 +1,77 @@
+package dev.zeith.immich.io;
+
+import com.google.gson.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkCheckJsonBenchmark
+{
+	@Param({"500", "5000", "50000"})
+	public int assets;
+	
+	private ImmichEngine engine;
+	private Map<String, String> checksumsById;
+	private byte[] response;
+	
+	@Setup
+	public void setup()
+	{
+		engine = new ImmichEngine(HttpClient.newHttpClient(), new Gson(), "http://localhost:2283", "bench");
+		
+		var random = new Random(assets);
+		checksumsById = new LinkedHashMap<>();
+		var results = new JsonArray();
+		byte[] digest = new byte[20];
+		for(int i = 0; i < assets; i++)
+		{
+			random.nextBytes(digest);
+			var id = UUID.randomUUID().toString();
+			checksumsById.put(id, Hashers.toHex(digest));
+			
+			var result = new JsonObject();
+			result.addProperty("id", id);
+			if(random.nextBoolean())
+				result.addProperty("action", "accept");
+			else
+			{
+				result.addProperty("action", "reject");
+				result.addProperty("reason", "duplicate");
+				result.addProperty("assetId", UUID.randomUUID().toString());
+			}
+			results.add(result);
+		}
+		
+		var json = new JsonObject();
+		json.add("results", results);
+		response = json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public byte[] encodeRequest()
+	{
+		return engine.encodeBulkCheck(checksumsById);
+	}
+	
+	@Benchmark
+	public List<String> decodeResponse()
+			throws IOException
+	{
+		List<String> accepted = new ArrayList<>();
+		engine.decodeActions(new ByteArrayInputStream(response), (id, action) ->
+		{
+			if(action.equals("accept")) accepted.add(id);
+		});
+		return accepted;
+	}
+}
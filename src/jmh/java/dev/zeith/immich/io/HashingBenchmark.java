@@ -0,0 +1,66 @@
+package dev.zeith.immich.io;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark
+{
+	@Param({"4096", "1048576", "33554432"})
+	public int size;
+	
+	private Path file;
+	
+	@Setup
+	public void setup()
+			throws IOException
+	{
+		file = Files.createTempFile("immich-bench", ".bin");
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		Files.write(file, data);
+	}
+	
+	@TearDown
+	public void tearDown()
+			throws IOException
+	{
+		Files.deleteIfExists(file);
+	}
+	
+	@Benchmark
+	public String genHash()
+	{
+		return Hashers.SHA1.genHash(file.toFile());
+	}
+	
+	@Benchmark
+	public byte[] digestionChannel()
+			throws IOException
+	{
+		try(var channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			return Hashers.SHA1.digestion().start().feed(channel).digestRaw();
+		}
+	}
+	
+	@Benchmark
+	public String digestionHex()
+			throws IOException
+	{
+		try(var channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			return Hashers.SHA1.digestion().start().feed(channel).digestHex();
+		}
+	}
+}
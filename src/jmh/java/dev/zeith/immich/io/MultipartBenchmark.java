@@ -0,0 +1,111 @@
+package dev.zeith.immich.io;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartBenchmark
+{
+	@Param({"1024", "67108864"})
+	public int size;
+	
+	private Path file;
+	
+	@Setup
+	public void setup()
+			throws IOException
+	{
+		file = Files.createTempFile("immich-bench", ".png");
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		Files.write(file, data);
+	}
+	
+	@TearDown
+	public void tearDown()
+			throws IOException
+	{
+		Files.deleteIfExists(file);
+	}
+	
+	private HTTPRequestMultipartBody.Builder builder()
+	{
+		return new HTTPRequestMultipartBody.Builder()
+				.addPart("deviceAssetId", "web-" + file.getFileName() + "-0")
+				.addPart("deviceId", "WEB")
+				.addPart("fileCreatedAt", "2025-01-01T00:00:00Z")
+				.addPart("fileModifiedAt", "2025-01-01T00:00:00Z")
+				.addPart("isFavorite", "false")
+				.addPart("duration", "0:00:00.000000")
+				.addPart("assetData", file.toFile(), "application/octet-stream", file.getFileName().toString());
+	}
+	
+	@Benchmark
+	public HTTPRequestMultipartBody build()
+			throws IOException
+	{
+		return builder().build();
+	}
+	
+	@Benchmark
+	public void buildAndPublish(Blackhole bh)
+			throws IOException
+	{
+		drain(builder().build(), bh);
+	}
+	
+	@Benchmark
+	public String buildAndPublishDigested(Blackhole bh)
+			throws IOException
+	{
+		var body = builder().digestFiles(Hashers.SHA1).build();
+		drain(body, bh);
+		return body.getSentChecksum();
+	}
+	
+	/**
+	 * Consumes the whole body the way the HTTP client would, minus the socket.
+	 */
+	private static void drain(HTTPRequestMultipartBody body, Blackhole bh)
+	{
+		var done = new CompletableFuture<Void>();
+		body.subscribe(new Flow.Subscriber<>()
+		{
+			@Override
+			public void onSubscribe(Flow.Subscription subscription)
+			{
+				subscription.request(Long.MAX_VALUE);
+			}
+			
+			@Override
+			public void onNext(ByteBuffer item)
+			{
+				bh.consume(item);
+			}
+			
+			@Override
+			public void onError(Throwable throwable)
+			{
+				done.completeExceptionally(throwable);
+			}
+			
+			@Override
+			public void onComplete()
+			{
+				done.complete(null);
+			}
+		});
+		done.join();
+	}
+}
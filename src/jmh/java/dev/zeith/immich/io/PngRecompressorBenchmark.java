@@ -0,0 +1,58 @@
+package dev.zeith.immich.io;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to recompress a screenshot-like PNG, as written by {@link ImageIO}, on a single thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class PngRecompressorBenchmark
+{
+	@Param({"1920x1080", "3840x2160"})
+	public String resolution;
+	
+	private byte[] png;
+	
+	@Setup
+	public void setup()
+			throws IOException
+	{
+		var wh = resolution.split("x");
+		int w = Integer.parseInt(wh[0]), h = Integer.parseInt(wh[1]);
+		
+		var img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		var g = img.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setPaint(new GradientPaint(0, 0, Color.BLUE, w, h, Color.ORANGE));
+		g.fillRect(0, 0, w, h);
+		var random = new Random(42L);
+		for(int i = 0; i < 300; i++)
+		{
+			g.setColor(new Color(random.nextInt(0x1000000)));
+			g.fillOval(random.nextInt(w), random.nextInt(h), random.nextInt(400), random.nextInt(400));
+		}
+		g.dispose();
+		
+		var out = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", out);
+		png = out.toByteArray();
+	}
+	
+	@Benchmark
+	public byte[] recompress()
+	{
+		return PngRecompressor.recompress(png);
+	}
+}
@@ -0,0 +1,193 @@
+package dev.zeith.immich.loadtest;
+
+import com.google.gson.*;
+import com.sun.net.httpserver.*;
+import dev.zeith.immich.io.BandwidthLimiter;
+import lombok.SneakyThrows;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process stand-in for the parts of the Immich API the uploader talks to, so throughput can be measured without a live server.
+ * <p>
+ * Implements {@code server/media-types}, {@code server/ping}, {@code assets/bulk-upload-check}, {@code assets}
+ * and {@code albums/{id}/assets}. Every response is delayed by the configured latency, and upload bodies are read
+ * no faster than the configured bandwidth, shared by all uploads like the link to a real server would be.
+ * Of the checked files, a {@code duplicateRate} fraction is rejected as already present (uploads without a checksum
+ * are answered as duplicates at the same rate instead), and an {@code errorRate} fraction of bulk checks and of uploads
+ * fails with HTTP 500 and a JSON error body, like a real server's.
+ * Nothing is stored; the bodies are only counted.
+ */
+public class FakeImmichServer
+		implements AutoCloseable
+{
+	/**
+	 * @param bytesPerSecond shared upload bandwidth, 0 for unlimited.
+	 */
+	public record Settings(Duration latency, double duplicateRate, double errorRate, long bytesPerSecond)
+	{
+	}
+	
+	protected static final String SIMULATED_FAILURE = "{\"message\":\"Simulated failure\",\"statusCode\":500}";
+	protected static final String MEDIA_TYPES = "{\"image\":[\".png\",\".jpg\",\".jpeg\"],\"video\":[\".mp4\",\".mov\"],\"sidecar\":[\".xmp\"]}";
+	
+	protected final Settings settings;
+	protected final @Nullable BandwidthLimiter bandwidth;
+	protected final HttpServer server;
+	protected final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+	
+	public final LongAdder checked = new LongAdder();
+	public final LongAdder rejected = new LongAdder();
+	public final LongAdder uploads = new LongAdder();
+	public final LongAdder duplicates = new LongAdder();
+	public final LongAdder errors = new LongAdder();
+	public final LongAdder bytesReceived = new LongAdder();
+	public final LongAdder albumAssets = new LongAdder();
+	
+	public FakeImmichServer(Settings settings)
+			throws IOException
+	{
+		this.settings = settings;
+		this.bandwidth = settings.bytesPerSecond() > 0L ? new BandwidthLimiter(settings.bytesPerSecond(), settings.bytesPerSecond(), List.of()) : null;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/api/server/media-types", ex -> respond(ex, 200, MEDIA_TYPES));
+		server.createContext("/api/server/ping", ex -> respond(ex, 200, "{\"res\":\"pong\"}"));
+		server.createContext("/api/assets/bulk-upload-check", this::bulkUploadCheck);
+		server.createContext("/api/assets", this::upload);
+		server.createContext("/api/albums/", this::albumAssets);
+	}
+	
+	public void start()
+	{
+		server.start();
+	}
+	
+	/**
+	 * @return the base URL to hand to the engine.
+	 */
+	public String url()
+	{
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+	
+	protected void bulkUploadCheck(HttpExchange ex)
+			throws IOException
+	{
+		var request = JsonParser.parseReader(new InputStreamReader(ex.getRequestBody(), StandardCharsets.UTF_8)).getAsJsonObject();
+		
+		var random = ThreadLocalRandom.current();
+		if(random.nextDouble() < settings.errorRate())
+		{
+			errors.increment();
+			respond(ex, 500, SIMULATED_FAILURE);
+			return;
+		}
+		
+		var results = new JsonArray();
+		for(var asset : request.getAsJsonArray("assets"))
+		{
+			var result = new JsonObject();
+			result.add("id", asset.getAsJsonObject().get("id"));
+			if(random.nextDouble() < settings.duplicateRate())
+			{
+				rejected.increment();
+				result.addProperty("action", "reject");
+				result.addProperty("reason", "duplicate");
+				result.addProperty("assetId", UUID.randomUUID().toString());
+			} else
+				result.addProperty("action", "accept");
+			results.add(result);
+		}
+		checked.add(results.size());
+		
+		var response = new JsonObject();
+		response.add("results", results);
+		respond(ex, 200, response.toString());
+	}
+	
+	@SneakyThrows
+	protected void upload(HttpExchange ex)
+	{
+		var buf = new byte[64 * 1024];
+		var in = ex.getRequestBody();
+		int read;
+		while((read = in.read(buf)) > 0)
+		{
+			bytesReceived.add(read);
+			if(bandwidth == null) continue;
+			long wait = bandwidth.reserve(read);
+			if(wait > 0L) Thread.sleep(Duration.ofNanos(wait));
+		}
+		
+		var random = ThreadLocalRandom.current();
+		if(random.nextDouble() < settings.errorRate())
+		{
+			errors.increment();
+			respond(ex, 500, SIMULATED_FAILURE);
+			return;
+		}
+		
+		uploads.increment();
+		var checksum = ex.getRequestHeaders().getFirst("x-immich-checksum");
+		boolean duplicate = checksum == null && random.nextDouble() < settings.duplicateRate();
+		if(duplicate) duplicates.increment();
+		respond(ex, duplicate ? 200 : 201, "{\"id\":\"" + UUID.randomUUID() + "\",\"status\":\"" + (duplicate ? "duplicate" : "created") + "\"}");
+	}
+	
+	/**
+	 * Answers {@code PUT albums/{id}/assets} with a success for every asset id.
+	 */
+	protected void albumAssets(HttpExchange ex)
+			throws IOException
+	{
+		if(!ex.getRequestURI().getPath().endsWith("/assets"))
+		{
+			respond(ex, 404, "{\"message\":\"Not found\"}");
+			return;
+		}
+		
+		var request = JsonParser.parseReader(new InputStreamReader(ex.getRequestBody(), StandardCharsets.UTF_8)).getAsJsonObject();
+		
+		var results = new JsonArray();
+		for(var id : request.getAsJsonArray("ids"))
+		{
+			var result = new JsonObject();
+			result.add("id", id);
+			result.addProperty("success", true);
+			results.add(result);
+		}
+		albumAssets.add(results.size());
+		respond(ex, 200, results.toString());
+	}
+	
+	@SneakyThrows
+	protected void respond(HttpExchange ex, int status, String body)
+	{
+		// drain whatever body the handler did not read, so the connection can be reused
+		ex.getRequestBody().transferTo(OutputStream.nullOutputStream());
+		if(!settings.latency().isZero()) Thread.sleep(settings.latency());
+		
+		var bytes = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json");
+		ex.sendResponseHeaders(status, bytes.length);
+		try(var out = ex.getResponseBody())
+		{
+			out.write(bytes);
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
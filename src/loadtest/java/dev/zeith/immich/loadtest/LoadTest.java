@@ -0,0 +1,323 @@
+package dev.zeith.immich.loadtest;
+
+import com.google.gson.Gson;
+import dev.zeith.immich.*;
+import dev.zeith.immich.cfg.*;
+import dev.zeith.immich.io.*;
+import dev.zeith.immich.log.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.http.HttpClient;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs {@link FolderCheckService} and {@link ImmichEngine} end to end against a {@link FakeImmichServer}
+ * over folders filled by a {@link MediaGenerator}, and reports files/s, MB/s, the latency from file creation
+ * to deletion and the peak heap.
+ * <p>
+ * Options are given as {@code --name value}, see {@link Options}. By default every file is generated up front and
+ * the clock starts once the folders are handed to the scheduler; with {@code --rate} they are generated while the
+ * uploader runs instead. The run ends when every file has been deleted or after {@code --timeout} seconds,
+ * and exits with 1 if files were left over, or if more files were deleted than some server took in or rejected as duplicates.
+ * <p>
+ * Watched folders ({@code --watch true}) pick up failed uploads again only at their full rescan, every {@code --rescan-seconds}.
+ * With {@code --targets} above 1, every file goes to that many fake servers, each with its own journal and album batcher.
+ * The files go into a temporary directory, or into {@code --dir}, which has to be empty; only what the run created is deleted afterwards.
+ */
+public class LoadTest
+{
+	public record Options(
+			int files,
+			int folders,
+			int targets,
+			int minKilobytes,
+			int maxKilobytes,
+			double jpegRatio,
+			int rate,
+			int latencyMillis,
+			double duplicateRate,
+			double errorRate,
+			double megabytesPerSecond,
+			int uploads,
+			int inFlightMegabytes,
+			int scanSeconds,
+			boolean watch,
+			int rescanSeconds,
+			int timeoutSeconds,
+			String logLevel,
+			boolean logSummary,
+			String dir
+	)
+	{
+		static Options parse(String[] args)
+		{
+			Map<String, String> values = new HashMap<>();
+			for(int i = 0; i < args.length; i++)
+			{
+				if(!args[i].startsWith("--") || i + 1 >= args.length) throw new IllegalArgumentException("Expected --name value, got " + args[i]);
+				values.put(args[i].substring(2), args[++i]);
+			}
+			
+			var options = new Options(
+					Integer.parseInt(take(values, "files", "10000")),
+					Integer.parseInt(take(values, "folders", "1")),
+					Integer.parseInt(take(values, "targets", "1")),
+					Integer.parseInt(take(values, "min-kb", "64")),
+					Integer.parseInt(take(values, "max-kb", "512")),
+					Double.parseDouble(take(values, "jpeg-ratio", "0.25")),
+					Integer.parseInt(take(values, "rate", "0")),
+					Integer.parseInt(take(values, "latency-ms", "5")),
+					Double.parseDouble(take(values, "duplicates", "0.1")),
+					Double.parseDouble(take(values, "errors", "0.01")),
+					Double.parseDouble(take(values, "bandwidth-mbps", "0")),
+					Integer.parseInt(take(values, "uploads", "8")),
+					Integer.parseInt(take(values, "in-flight-mb", "256")),
+					Integer.parseInt(take(values, "scan-seconds", "1")),
+					Boolean.parseBoolean(take(values, "watch", "false")),
+					Integer.parseInt(take(values, "rescan-seconds", "30")),
+					Integer.parseInt(take(values, "timeout", "600")),
+					take(values, "log-level", "info"),
+					Boolean.parseBoolean(take(values, "log-summary", "false")),
+					take(values, "dir", "")
+			);
+			if(!values.isEmpty()) throw new IllegalArgumentException("Unknown options: " + values.keySet());
+			return options;
+		}
+		
+		private static String take(Map<String, String> values, String name, String def)
+		{
+			var value = values.remove(name);
+			return value != null ? value : def;
+		}
+	}
+	
+	/**
+	 * Collects what happened to every deleted file.
+	 */
+	static class Results
+	{
+		final long[] latencies;
+		final AtomicInteger deleted = new AtomicInteger();
+		final LongAdder bytes = new LongAdder();
+		
+		Results(int files)
+		{
+			latencies = new long[files];
+		}
+		
+		void deleted(long size, long latencyMillis)
+		{
+			int i = deleted.getAndIncrement();
+			if(i < latencies.length) latencies[i] = latencyMillis;
+			bytes.add(size);
+		}
+		
+		long percentile(double p)
+		{
+			int n = Math.min(deleted.get(), latencies.length);
+			if(n == 0) return 0L;
+			var sorted = Arrays.copyOf(latencies, n);
+			Arrays.sort(sorted);
+			return sorted[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+		}
+	}
+	
+	/**
+	 * A folder service that reports each deletion, taking the file's modification time as its creation time.
+	 */
+	static class MeasuredFolder
+			extends FolderCheckService
+	{
+		final Results results;
+		
+		MeasuredFolder(UploadLimiter limiter, List<UploadTarget> targets, FolderConfig config, Results results)
+		{
+			super(limiter, targets, config);
+			this.results = results;
+		}
+		
+		@Override
+		protected void deleteFile(File file)
+		{
+			long size = file.length();
+			long created = file.lastModified();
+			super.deleteFile(file);
+			if(!file.exists()) results.deleted(size, System.currentTimeMillis() - created);
+		}
+	}
+	
+	public static void main(String[] args)
+			throws Exception
+	{
+		var options = Options.parse(args);
+		var out = System.out;
+		out.println("Load test: " + options);
+		
+		var root = options.dir().isEmpty() ? Files.createTempDirectory("immich-loadtest") : Files.createDirectories(Path.of(options.dir()));
+		// the uploader deletes whatever it uploads, so it is never pointed at a directory that holds anything else
+		try(var entries = Files.list(root))
+		{
+			if(entries.findAny().isPresent()) throw new IllegalArgumentException("--dir " + root + " is not empty");
+		}
+		List<Path> folders = new ArrayList<>();
+		for(int i = 0; i < Math.max(1, options.folders()); i++)
+			folders.add(Files.createDirectories(root.resolve("folder-" + i)));
+		var generator = new MediaGenerator(folders, options.minKilobytes() * 1024, options.maxKilobytes() * 1024, options.jpegRatio(), 42L);
+		
+		if(options.rate() <= 0)
+		{
+			long start = System.nanoTime();
+			generator.generate(options.files());
+			out.printf("Generated %d files (%.1f MB) in %d ms.%n", generator.generated(), generator.bytes() / 1048576D, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+		
+		var client = HttpClient
+				.newBuilder()
+				.executor(Executors.newFixedThreadPool(4, Thread.ofPlatform().name("ImmichHttp", 0L).daemon().factory()))
+				.build();
+		var hashExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), Thread.ofPlatform().name("Hasher", 0L).daemon().factory());
+		
+		List<FakeImmichServer> servers = new ArrayList<>();
+		List<UploadTarget> targets = new ArrayList<>();
+		for(int i = 0; i < Math.max(1, options.targets()); i++)
+		{
+			var server = new FakeImmichServer(new FakeImmichServer.Settings(Duration.ofMillis(options.latencyMillis()), options.duplicateRate(), options.errorRate(), (long) (options.megabytesPerSecond() * 1048576D)));
+			server.start();
+			servers.add(server);
+			
+			var engine = new ImmichEngine(client, new Gson(), server.url(), "loadtest");
+			engine.setHashExecutor(hashExecutor);
+			// the other targets have no media type refresh to make them reachable
+			if(i == 0) engine.fetchMediaTypes();
+			else engine.ping();
+			
+			var name = i == 0 ? TargetConfig.DEFAULT : "target-" + i;
+			targets.add(new UploadTarget(name, engine, new AlbumBatcher(engine, 250, 5), UploadJournal.open(root.resolve("journal-" + name + ".log"))));
+		}
+		
+		var limiter = new UploadLimiter(options.uploads(), options.inFlightMegabytes());
+		var scheduler = new ScanScheduler(folders.size());
+		var results = new Results(options.files());
+		
+		// the log lines are still formatted by the log writer, but not printed, which would measure the console rather than the uploader
+		LogWriter.DEFAULT.setLevel(Objects.requireNonNull(Level.parse(options.logLevel()), "--log-level"));
+		LogWriter.DEFAULT.setSummary(options.logSummary());
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		System.gc();
+		var heap = ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getType() == MemoryType.HEAP).toList();
+		heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+		
+		long start = System.nanoTime();
+		for(var folder : folders)
+		{
+			var config = FolderConfig.createVRChat()
+					.withPath(folder.toString())
+					.withAlbumId("loadtest")
+					.withFilePatterns(List.of("^" + MediaGenerator.PREFIX + ".+\\.(png|jpg)$"))
+					.withTimeRemappers(Map.of())
+					.withWatchEvents(options.watch())
+					.withFullRescanSeconds(options.rescanSeconds())
+					.withMaxConcurrentUploads(options.uploads())
+					.withMinScanSeconds(options.scanSeconds())
+					.withMaxScanSeconds(options.scanSeconds())
+					.revalidate();
+			new MeasuredFolder(limiter, targets, config, results).start(scheduler);
+		}
+		
+		if(options.rate() > 0)
+			Thread.ofPlatform().name("MediaGenerator").daemon().start(() -> generate(generator, options.files(), options.rate()));
+		
+		long deadline = start + TimeUnit.SECONDS.toNanos(options.timeoutSeconds());
+		long nextProgress = start;
+		while(results.deleted.get() < options.files() && System.nanoTime() < deadline)
+		{
+			if(System.nanoTime() >= nextProgress)
+			{
+				out.printf("%d / %d files done after %d s%n", results.deleted.get(), options.files(), TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+				nextProgress += TimeUnit.SECONDS.toNanos(5L);
+			}
+			Thread.sleep(50L);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9D;
+		long peakHeap = heap.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+		
+		scheduler.close();
+		for(var target : targets)
+		{
+			target.albums().close();
+			target.journal().close();
+		}
+		servers.forEach(FakeImmichServer::close);
+		System.setOut(out);
+		
+		int done = results.deleted.get();
+		out.println();
+		out.printf("Files:        %d of %d in %.2f s%n", done, options.files(), seconds);
+		out.printf("Throughput:   %.1f files/s, %.2f MB/s%n", done / seconds, results.bytes.sum() / 1048576D / seconds);
+		out.printf("Latency:      p50 %d ms, p99 %d ms (file creation to deletion)%n", results.percentile(0.5D), results.percentile(0.99D));
+		out.printf("Peak heap:    %.1f MB%n", peakHeap / 1048576D);
+		for(var server : servers)
+			out.printf("Server:       %d checked, %d rejected, %d uploads, %d duplicates, %d errors, %.1f MB received, %d album assets%n",
+					server.checked.sum(), server.rejected.sum(), server.uploads.sum(), server.duplicates.sum(), server.errors.sum(), server.bytesReceived.sum() / 1048576D, server.albumAssets.sum());
+		
+		// every deleted file has to be on every server, either uploaded or rejected as already present
+		boolean lost = false;
+		for(var server : servers)
+		{
+			long kept = server.uploads.sum() + server.rejected.sum();
+			if(done <= kept) continue;
+			out.printf("DATA LOSS:    %d files deleted, but a server only took in or rejected %d%n", done, kept);
+			lost = true;
+		}
+		
+		cleanUp(root, folders, options.dir().isEmpty());
+		System.exit(done < options.files() || lost ? 1 : 0);
+	}
+	
+	/**
+	 * Deletes the folders and journals this run created, and the root too if it was a temporary directory.
+	 */
+	private static void cleanUp(Path root, List<Path> folders, boolean temporary)
+			throws IOException
+	{
+		for(var folder : folders)
+			try(var walk = Files.walk(folder))
+			{
+				walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		try(var journals = Files.newDirectoryStream(root, "journal-*"))
+		{
+			for(var journal : journals) Files.deleteIfExists(journal);
+		}
+		if(temporary) Files.deleteIfExists(root);
+	}
+	
+	/**
+	 * Writes {@code count} files at {@code rate} files per second, catching up in bursts if the disk falls behind.
+	 */
+	private static void generate(MediaGenerator generator, int count, int rate)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			for(int i = 0; i < count; i++)
+			{
+				long due = start + i * 1_000_000_000L / rate;
+				long wait = due - System.nanoTime();
+				if(wait > 0L) Thread.sleep(Duration.ofNanos(wait));
+				generator.generate();
+			}
+		} catch(IOException e)
+		{
+			e.printStackTrace();
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
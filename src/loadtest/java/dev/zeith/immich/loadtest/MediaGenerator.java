@@ -0,0 +1,107 @@
+package dev.zeith.immich.loadtest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Fills folders with synthetic media files, handed out round-robin and {@link #PER_DIRECTORY} to a subdirectory.
+ * <p>
+ * The files are PNGs or JPEGs as far as {@link dev.zeith.immich.WriteCompletion} can tell: the format's signature and end marker
+ * around a slice of random noise, so each of them is released on the first scan that sees it.
+ * A running number right after the signature makes every file's content, and thus its checksum, unique.
+ * Not thread-safe.
+ */
+public class MediaGenerator
+{
+	public static final int PER_DIRECTORY = 1000;
+	public static final String PREFIX = "LoadTest_";
+	
+	/**
+	 * Larger files repeat the noise, which keeps the generator's own footprint out of the heap numbers.
+	 */
+	private static final int NOISE_BYTES = 1 << 20;
+	
+	private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final byte[] PNG_TRAILER = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+	private static final byte[] JPEG_SOI = {(byte) 0xFF, (byte) 0xD8};
+	private static final byte[] JPEG_EOI = {(byte) 0xFF, (byte) 0xD9};
+	
+	private final List<Path> roots;
+	private final int minBytes, maxBytes;
+	private final double jpegRatio;
+	private final Random random;
+	private final byte[] noise;
+	
+	private long generated, bytes;
+	
+	public MediaGenerator(List<Path> roots, int minBytes, int maxBytes, double jpegRatio, long seed)
+	{
+		this.roots = List.copyOf(roots);
+		this.minBytes = Math.max(PNG_SIGNATURE.length + PNG_TRAILER.length + Long.BYTES, minBytes);
+		this.maxBytes = Math.max(this.minBytes, maxBytes);
+		this.jpegRatio = jpegRatio;
+		this.random = new Random(seed);
+		this.noise = new byte[Math.min(this.maxBytes, NOISE_BYTES)];
+		random.nextBytes(noise);
+	}
+	
+	/**
+	 * Writes the next file.
+	 */
+	public Path generate()
+			throws IOException
+	{
+		long n = generated;
+		long index = n / roots.size();
+		var dir = roots.get((int) (n % roots.size())).resolve("d" + index / PER_DIRECTORY);
+		if(index % PER_DIRECTORY == 0L) Files.createDirectories(dir);
+		
+		boolean jpeg = random.nextDouble() < jpegRatio;
+		byte[] head = jpeg ? JPEG_SOI : PNG_SIGNATURE, tail = jpeg ? JPEG_EOI : PNG_TRAILER;
+		int size = minBytes + random.nextInt(maxBytes - minBytes + 1);
+		int body = size - head.length - tail.length - Long.BYTES;
+		
+		var file = dir.resolve(PREFIX + n + (jpeg ? ".jpg" : ".png"));
+		List<ByteBuffer> parts = new ArrayList<>();
+		parts.add(ByteBuffer.wrap(head));
+		parts.add(ByteBuffer.allocate(Long.BYTES).putLong(0, n));
+		for(int left = body, offset = random.nextInt(noise.length); left > 0; offset = 0)
+		{
+			int len = Math.min(left, noise.length - offset);
+			parts.add(ByteBuffer.wrap(noise, offset, len));
+			left -= len;
+		}
+		parts.add(ByteBuffer.wrap(tail));
+		
+		var buffers = parts.toArray(ByteBuffer[]::new);
+		try(var channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+		{
+			while(buffers[buffers.length - 1].hasRemaining())
+				channel.write(buffers);
+		}
+		
+		generated++;
+		bytes += size;
+		return file;
+	}
+	
+	public void generate(int count)
+			throws IOException
+	{
+		for(int i = 0; i < count; i++)
+			generate();
+	}
+	
+	public long generated()
+	{
+		return generated;
+	}
+	
+	public long bytes()
+	{
+		return bytes;
+	}
+}
@@ -0,0 +1,238 @@
+package dev.zeith.immich;
+
+import dev.zeith.immich.cfg.FolderConfig;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * The file name rules of a folder, compiled once from {@link FolderConfig#filePatterns()} and {@link FolderConfig#timeRemappers()}.
+ * <p>
+ * File patterns keep their {@link java.util.regex.Matcher#find()} semantics, but a pattern anchored to the start or end of the name
+ * is first checked against its literal prefix or suffix (like {@code VRChat_} or {@code .png}), so most non-matching names
+ * are rejected without running the regex. Timestamps are parsed with precompiled {@link DateTimeFormatter}s.
+ * <p>
+ * Instances are immutable and safe to share between scanning and upload threads.
+ */
+public final class FileNameRules
+{
+	private static final String META = "\\^$.|?*+()[]{}";
+	
+	private final Rule[] patterns;
+	private final TimeRule[] timeRules;
+	private final ZoneId zone;
+	
+	private record Rule(Pattern pattern, String prefix, String suffix)
+	{
+		boolean matches(String name)
+		{
+			if(!prefix.isEmpty() && !name.startsWith(prefix)) return false;
+			if(!suffix.isEmpty() && !name.endsWith(suffix)) return false;
+			return pattern.matcher(name).find();
+		}
+	}
+	
+	private record TimeRule(Pattern pattern, DateTimeFormatter format)
+	{
+	}
+	
+	private FileNameRules(Rule[] patterns, TimeRule[] timeRules, ZoneId zone)
+	{
+		this.patterns = patterns;
+		this.timeRules = timeRules;
+		this.zone = zone;
+	}
+	
+	public static FileNameRules compile(FolderConfig config)
+	{
+		return compile(config.filePatterns(), config.timeRemappers(), ZoneId.systemDefault());
+	}
+	
+	public static FileNameRules compile(List<String> filePatterns, Map<String, String> timeRemappers, ZoneId zone)
+	{
+		var patterns = filePatterns
+				.stream()
+				.map(FileNameRules::compileRule)
+				.toArray(Rule[]::new);
+		
+		var timeRules = timeRemappers
+				.entrySet()
+				.stream()
+				.map(e -> new TimeRule(Pattern.compile(e.getKey()), DateTimeFormatter.ofPattern(normalizeTime(e.getValue()))))
+				.toArray(TimeRule[]::new);
+		
+		return new FileNameRules(patterns, timeRules, zone);
+	}
+	
+	private static Rule compileRule(String regex)
+	{
+		var pattern = Pattern.compile(regex);
+		// inline flags and groups may change what the literal text matches (case, comments), so those patterns always run in full
+		if(regex.contains("(?")) return new Rule(pattern, "", "");
+		return new Rule(pattern, literalPrefix(regex), literalSuffix(regex));
+	}
+	
+	/**
+	 * @return true if any of the file patterns is found in the name.
+	 */
+	public boolean matches(String name)
+	{
+		for(Rule rule : patterns)
+			if(rule.matches(name))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Finds the first time remapper whose pattern is found in the name and parses its {@code time} group.
+	 * A format without a time of day yields midnight of the parsed date.
+	 *
+	 * @return the timestamp encoded in the name, or null if no remapper applies.
+	 *
+	 * @throws DateTimeParseException if a remapper applies but its {@code time} group does not parse.
+	 */
+	public @Nullable Instant timestamp(String name)
+	{
+		for(TimeRule rule : timeRules)
+		{
+			var matcher = rule.pattern().matcher(name);
+			if(!matcher.find()) continue;
+			
+			// a format holding only a date stands for the start of that day, like it did with SimpleDateFormat
+			var parsed = rule.format().parseBest(normalizeTime(matcher.group("time")), LocalDateTime::from, LocalDate::from);
+			var local = parsed instanceof LocalDate date ? date.atStartOfDay() : (LocalDateTime) parsed;
+			return local.atZone(zone).toInstant();
+		}
+		return null;
+	}
+	
+	/**
+	 * Separators in names and formats vary between {@code .}, {@code _} and spaces, so both sides are normalized to dashes.
+	 */
+	static String normalizeTime(String s)
+	{
+		return s.replace('.', '-').replace('_', '-').replace(' ', '-');
+	}
+	
+	/**
+	 * @return the literal text every match must start with, or an empty string if the pattern is not anchored or has no usable prefix.
+	 */
+	static String literalPrefix(String regex)
+	{
+		if(!regex.startsWith("^") || regex.indexOf('|') >= 0) return "";
+		
+		var prefix = new StringBuilder();
+		int i = 1;
+		while(i < regex.length())
+		{
+			char c = regex.charAt(i);
+			int next;
+			char literal;
+			if(c == '\\' && i + 1 < regex.length() && META.indexOf(regex.charAt(i + 1)) >= 0)
+			{
+				literal = regex.charAt(i + 1);
+				next = i + 2;
+			} else if(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == ' ')
+			{
+				literal = c;
+				next = i + 1;
+			} else break;
+			
+			// a quantified character is optional or repeated, so the prefix ends before it
+			if(next < regex.length() && "?*+{".indexOf(regex.charAt(next)) >= 0) break;
+			
+			prefix.append(literal);
+			i = next;
+		}
+		return prefix.toString();
+	}
+	
+	/**
+	 * @return the literal text every match must end with, or an empty string if the pattern is not anchored or has no usable suffix.
+	 */
+	static String literalSuffix(String regex)
+	{
+		if(!regex.endsWith("$") || regex.endsWith("\\$") || regex.indexOf('|') >= 0) return "";
+		
+		var suffix = new StringBuilder();
+		int i = regex.length() - 2;
+		while(i >= 0)
+		{
+			char c = regex.charAt(i);
+			if(META.indexOf(c) >= 0)
+			{
+				// an escaped meta character is a literal, as long as the backslash itself is not escaped
+				if(i > 0 && regex.charAt(i - 1) == '\\' && c != '\\' && (i < 2 || regex.charAt(i - 2) != '\\'))
+				{
+					suffix.append(c);
+					i -= 2;
+					continue;
+				}
+				break;
+			}
+			if(!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != ' ') break;
+			// letters after a backslash are classes like \d or \w
+			if(i > 0 && regex.charAt(i - 1) == '\\') break;
+			
+			suffix.append(c);
+			i--;
+		}
+		return suffix.reverse().toString();
+	}
+	
+	/**
+	 * Media type extensions (like {@code .png}) grouped by length, matched case-insensitively against the end of a file name
+	 * without allocating.
+	 */
+	public static final class Extensions
+	{
+		private final Set<String> source;
+		private final String[][] byLength;
+		
+		private Extensions(Set<String> source)
+		{
+			this.source = source;
+			
+			int max = 0;
+			for(String ext : source) max = Math.max(max, ext.length());
+			
+			List<List<String>> groups = new ArrayList<>();
+			for(int i = 0; i <= max; i++) groups.add(new ArrayList<>());
+			for(String ext : source)
+				if(ext.startsWith("."))
+					groups.get(ext.length()).add(ext);
+			
+			this.byLength = groups.stream().map(g -> g.toArray(String[]::new)).toArray(String[][]::new);
+		}
+		
+		public static Extensions of(Set<String> extensions)
+		{
+			return new Extensions(extensions);
+		}
+		
+		/**
+		 * @return true if these extensions were compiled from the very same set instance.
+		 */
+		public boolean isCompiledFrom(Set<String> extensions)
+		{
+			return source == extensions;
+		}
+		
+		public boolean matches(String name)
+		{
+			int dot = name.lastIndexOf('.');
+			if(dot < 0) return false;
+			
+			int len = name.length() - dot;
+			if(len >= byLength.length) return false;
+			
+			for(String ext : byLength[len])
+				if(name.regionMatches(true, dot, ext, 0, len))
+					return true;
+			return false;
+		}
+	}
+}
\ No newline at end of file
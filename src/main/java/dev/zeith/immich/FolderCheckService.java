@@ -1,183 +1,1039 @@
 package dev.zeith.immich;
 
 import com.google.gson.JsonObject;
-import dev.zeith.immich.cfg.FolderConfig;
-import dev.zeith.immich.io.ImmichEngine;
+import dev.zeith.immich.cfg.*;
+import dev.zeith.immich.io.*;
+import dev.zeith.immich.log.*;
+import dev.zeith.immich.metrics.MetricsRegistry;
 import lombok.SneakyThrows;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
+import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
-import java.text.SimpleDateFormat;
-import java.time.Duration;
+import java.time.*;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FolderCheckService
-		implements Runnable
+		implements ScanScheduler.Folder
 {
+	/**
+	 * The engine, album batcher and journal of the first upload target, which also hashes the files and provides the media types.
+	 */
 	protected final ImmichEngine immich;
+	protected final UploadLimiter limiter;
+	protected final AlbumBatcher albums;
+	protected final UploadJournal journal;
 	protected final FolderConfig config;
 	
-	protected final Pattern[] filters;
+	protected final List<Destination> destinations;
 	
-	protected final Map<Pattern, SimpleDateFormat> timeRemappers;
+	protected final Semaphore folderUploads;
 	
-	protected final Duration period = Duration.ofSeconds(30L);
+	/**
+	 * Runs the hash stage and every upload of the folder; uploads outlive the scan that queued them, see {@link #processFiles(List)}.
+	 */
+	protected final ExecutorService pipeline = Executors.newVirtualThreadPerTaskExecutor();
 	
-	public FolderCheckService(ImmichEngine immich, FolderConfig config)
+	/**
+	 * Files whose {@link Delivery} is under way. Scans skip them, since remapping their timestamps makes the scanner yield them again.
+	 */
+	protected final Set<File> inFlight = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Bounds the deliveries under way, so a backfill of a huge folder holds no more than {@link #QUEUED_WINDOWS} windows of files at once.
+	 */
+	protected final Semaphore deliveries;
+	
+	protected final FolderMetrics metrics;
+	
+	protected final Log log;
+	
+	protected final IncrementalScanner scanner;
+	
+	protected final FileNameRules rules;
+	
+	protected final WriteCompletion completion;
+	
+	protected final @Nullable BandwidthLimiter bandwidth;
+	
+	protected @Nullable PngRecompressor recompressor;
+	
+	protected volatile FileNameRules.Extensions extensions = FileNameRules.Extensions.of(Set.of());
+	protected volatile FileNameRules.Extensions videoExtensions = FileNameRules.Extensions.of(Set.of());
+	
+	protected final Set<Path> pending = new LinkedHashSet<>();
+	
+	protected @Nullable FolderWatcher watcher;
+	
+	protected ScanScheduler scheduler;
+	
+	protected Instant nextRescan = Instant.MIN;
+	
+	/**
+	 * The media types the scanner's snapshots were taken with.
+	 */
+	protected Set<String> scannedTypes = Set.of();
+	
+	protected static final Duration SETTLE_POLL = Duration.ofSeconds(1L);
+	
+	/**
+	 * How many bulk check batches a tick takes from the scanner at once; bounds the files a tick holds in memory.
+	 */
+	protected static final int WINDOW_BATCHES = 4;
+	
+	/**
+	 * How many windows of files may be on their way to the server while the scans go on.
+	 */
+	protected static final int QUEUED_WINDOWS = 2;
+	
+	/**
+	 * A server the folder uploads to, with the album its files go into there.
+	 */
+	public record Destination(UploadTarget target, String albumId)
+	{
+	}
+	
+	/**
+	 * A bulk check of some files of a batch with one destination.
+	 */
+	protected record Check(Destination destination, List<Delivery> asked, CompletableFuture<ImmichEngine.BulkCheck> result)
+	{
+	}
+	
+	/**
+	 * One file on its way to its destinations, which outlives the scan that found it. The file is deleted once the last destination
+	 * has accepted it or reported it as a duplicate; if any of them failed, it is handed back to the scanner instead, and the next
+	 * attempt skips the destinations whose journal already has it.
+	 */
+	protected class Delivery
+	{
+		protected final File file;
+		
+		/**
+		 * The destinations that have to check the file, or take it in a single pass.
+		 */
+		protected final List<Destination> unchecked = new ArrayList<>();
+		
+		/**
+		 * The destinations that accepted the file before a restart, with its checksum.
+		 */
+		protected final Map<Destination, String> resumed = new LinkedHashMap<>();
+		
+		/**
+		 * The checksum some destination's journal recorded for the file as it is now, which spares hashing it again.
+		 */
+		protected @Nullable String hashed;
+		
+		protected final AtomicInteger pending = new AtomicInteger();
+		protected volatile boolean failed;
+		
+		/**
+		 * The smaller copy that is sent in place of the file, made once the first destination accepted it, see {@link #isRecompressible(File)}.
+		 */
+		protected volatile @Nullable CompletableFuture<PngRecompressor.@Nullable Result> recompressed;
+		
+		// only touched by the scan that submits the uploads
+		private boolean remapped;
+		
+		protected Delivery(File file)
+		{
+			this.file = file;
+		}
+		
+		/**
+		 * Remaps the file's timestamps before its first upload is submitted, so every destination gets the same ones.
+		 *
+		 * @return false if they could not be remapped.
+		 */
+		protected boolean remapTimestamps()
+		{
+			if(remapped) return true;
+			try
+			{
+				FolderCheckService.this.remapTimestamps(file);
+			} catch(RuntimeException e)
+			{
+				log.warn("Failed to remap timestamps for {}", file, e);
+				return false;
+			}
+			remapped = true;
+			return true;
+		}
+		
+		/**
+		 * Called once for every destination the file was meant for.
+		 */
+		protected void done(boolean ok)
+		{
+			if(!ok) failed = true;
+			if(pending.decrementAndGet() > 0) return;
+			var copy = recompressed;
+			if(copy != null) copy.thenAccept(recompressor::release);
+			// released first, so a scan that races the retry does not skip the file as still under way
+			release(file);
+			if(failed) scanner.retry(file);
+			else deleteFile(file);
+		}
+		
+		/**
+		 * Starts recompressing the file on the recompressor's pool, unless it is not recompressible or that has been started already.
+		 */
+		protected void recompress()
+		{
+			if(recompressed != null || !isRecompressible(file)) return;
+			recompressed = recompressor.recompressAsync(file, config.recompressMinGainPercent() / 100D).whenComplete((result, e) ->
+			{
+				if(e != null) log.warn("Failed to recompress {}, sending it as it is.", file, e instanceof CompletionException ? e.getCause() : e);
+				else if(result != null)
+				{
+					metrics.recompressed.inc();
+					metrics.recompressSaved.add(result.originalSize() - result.size());
+					log.log(fileLevel(), "Recompressed {} from {} to {} bytes", file, result.originalSize(), result.size());
+				}
+			});
+		}
+		
+		/**
+		 * Waits for the copy started by {@link #recompress()}.
+		 *
+		 * @return the copy to send, or null if the file is sent as it is.
+		 */
+		protected PngRecompressor.@Nullable Result copy()
+		{
+			var copy = recompressed;
+			if(copy == null) return null;
+			try
+			{
+				return copy.join();
+			} catch(CompletionException e)
+			{
+				return null;
+			}
+		}
+	}
+	
+	public FolderCheckService(ImmichEngine immich, UploadLimiter limiter, AlbumBatcher albums, UploadJournal journal, FolderConfig config)
+	{
+		this(limiter, List.of(new UploadTarget(TargetConfig.DEFAULT, immich, albums, journal)), config);
+	}
+	
+	/**
+	 * @param targets every configured target, the first one being the primary, see {@link #immich}.
+	 * @throws IllegalArgumentException if the folder names a target that is not among them.
+	 */
+	public FolderCheckService(UploadLimiter limiter, List<UploadTarget> targets, FolderConfig config)
 	{
-		this.immich = immich;
+		var primary = targets.getFirst();
+		this.immich = primary.immich();
+		this.limiter = limiter;
+		this.albums = primary.albums();
+		this.journal = primary.journal();
 		this.config = config;
-		this.filters = config.filePatterns().stream().map(Pattern::compile).toArray(Pattern[]::new);
+		this.destinations = resolve(targets, config);
+		this.folderUploads = new Semaphore(config.maxConcurrentUploads(), true);
+		this.deliveries = new Semaphore(immich.getBulkCheckBatchSize() * WINDOW_BATCHES * QUEUED_WINDOWS);
+		this.metrics = new FolderMetrics(MetricsRegistry.DEFAULT, config.path());
+		this.log = Log.of(config.path());
+		this.rules = FileNameRules.compile(config);
+		this.bandwidth = config.bandwidth().createLimiter();
+		this.completion = new WriteCompletion(config.settleSeconds() * 1000L, config.incompleteHoldSeconds() * 1000L, config.lockProbe());
+		this.scanner = new IncrementalScanner(Path.of(config.path()), maxDepth(), this::isCandidateName, completion);
+	}
+	
+	/**
+	 * Resolves the folder's {@link FolderConfig#targets()} by name. A folder without any uploads to every target:
+	 * into its {@link FolderConfig#albumId()} on the {@value TargetConfig#DEFAULT} one, and into no album on the others.
+	 */
+	protected static List<Destination> resolve(List<UploadTarget> targets, FolderConfig config)
+	{
+		if(config.targets().isEmpty())
+			return targets.stream().map(t -> new Destination(t, t.name().equals(TargetConfig.DEFAULT) ? config.albumId() : "")).toList();
 		
-		LinkedHashMap<Pattern, SimpleDateFormat> timeRemappers = new LinkedHashMap<>();
-		for(Map.Entry<String, String> entry : config.timeRemappers().entrySet())
-			timeRemappers.put(Pattern.compile(entry.getKey()), new SimpleDateFormat(
-					entry.getValue()
-						 .replace('.', '-')
-						 .replace('_', '-')
-						 .replace(' ', '-')
-					)
-			);
-		this.timeRemappers = Collections.unmodifiableMap(timeRemappers);
+		List<Destination> destinations = new ArrayList<>();
+		for(var ft : config.targets())
+		{
+			var target = targets
+					.stream()
+					.filter(t -> t.name().equals(ft.target()))
+					.findFirst()
+					.orElseThrow(() -> new IllegalArgumentException("Folder " + config.path() + " uploads to unknown target " + ft.target()));
+			destinations.add(new Destination(target, ft.albumId()));
+		}
+		return List.copyOf(destinations);
+	}
+	
+	/**
+	 * Lets the folder send its PNG files as lossless copies if {@link FolderConfig#recompressPng()} is on; set it before {@link #start}.
+	 */
+	public void setRecompressor(@Nullable PngRecompressor recompressor)
+	{
+		this.recompressor = recompressor;
 	}
 	
 	protected boolean fileNameMatches(String name)
 	{
-		for(Pattern filter : filters)
-			if(filter.matcher(name).find())
-				return true;
-		return false;
+		return rules.matches(name);
 	}
 	
+	protected int maxDepth()
+	{
+		return config.maxDepth() <= 0 ? Integer.MAX_VALUE : config.maxDepth();
+	}
+	
+	protected boolean isCandidate(Path p)
+	{
+		return Files.isRegularFile(p) && isCandidateName(p.getFileName().toString());
+	}
+	
+	protected boolean isCandidateName(String fn)
+	{
+		return mediaExtensions().matches(fn) && fileNameMatches(fn);
+	}
+	
+	/**
+	 * @return the server's media type extensions, recompiled whenever the engine hands out a new set.
+	 */
+	protected FileNameRules.Extensions mediaExtensions()
+	{
+		var ext = extensions;
+		var types = immich.getFlatMediaTypesCache();
+		if(!ext.isCompiledFrom(types)) extensions = ext = FileNameRules.Extensions.of(types);
+		return ext;
+	}
+	
+	/**
+	 * @return the server's video extensions, recompiled whenever the engine hands out a new set.
+	 */
+	protected FileNameRules.Extensions videoExtensions()
+	{
+		var ext = videoExtensions;
+		var types = immich.getMediaTypes("video");
+		if(!ext.isCompiledFrom(types)) videoExtensions = ext = FileNameRules.Extensions.of(types);
+		return ext;
+	}
+	
+	/**
+	 * @see WriteCompletion
+	 */
+	protected boolean isComplete(File f)
+	{
+		return completion.isComplete(f.toPath(), f.length(), f.lastModified(), System.currentTimeMillis());
+	}
+	
+	/**
+	 * Scans the folder and processes the candidates window by window while the scan goes on,
+	 * so memory stays bounded no matter how many files the folder holds.
+	 */
+	@SneakyThrows
+	protected int runCheck()
+	{
+		long start = System.nanoTime();
+		long[] processing = new long[2];
+		scanner.scan(immich.getBulkCheckBatchSize() * WINDOW_BATCHES, window ->
+		{
+			long windowStart = System.nanoTime();
+			processFiles(window);
+			processing[0] += System.nanoTime() - windowStart;
+			processing[1] += window.size();
+		});
+		metrics.scanStage.observe(System.nanoTime() - start - processing[0]);
+		return (int) processing[1];
+	}
+	
+	/**
+	 * Processes only the given changed paths.
+	 *
+	 * @return the candidates that are not complete yet and should be looked at again later.
+	 */
+	protected List<Path> runCheck(Collection<Path> changed)
+	{
+		List<File> files = new ArrayList<>();
+		List<Path> unsettled = new ArrayList<>();
+		
+		long start = System.nanoTime();
+		for(Path p : changed)
+		{
+			if(!isCandidate(p)) continue;
+			var f = p.toFile();
+			if(isComplete(f)) files.add(f);
+			else unsettled.add(p);
+		}
+		metrics.scanStage.observeSince(start);
+		
+		processFiles(files);
+		return unsettled;
+	}
+	
+	/**
+	 * Runs the files through the hash &rarr; check &rarr; upload pipeline in batches of {@link ImmichEngine#getBulkCheckBatchSize()}.
+	 * Batch N+1 is hashed while batch N is being checked, and accepted files start uploading as soon as their batch returns.
+	 * Every file is hashed once; its batch is then checked against all of its destinations at the same time,
+	 * and the file is uploaded to each destination that accepts it, see {@link Delivery}.
+	 * Large files without a known checksum skip the hash and check stages entirely, see {@link #isSinglePass(File)}.
+	 * Files a destination's {@link UploadJournal} already knows resume there at the stage they had reached.
+	 * <p>
+	 * The call returns once the uploads are queued, so the next scan finds new files while they are still on the wire;
+	 * each {@link Delivery} deletes or retries its file when its last upload is done. Files still under way are skipped,
+	 * and once {@link #deliveries} are used up, the call waits for earlier ones to finish.
+	 */
 	@SneakyThrows
-	protected void runCheck(Path pth)
+	protected void processFiles(List<File> files)
 	{
-		int md = config.maxDepth() <= 0 ? Integer.MAX_VALUE : config.maxDepth();
+		if(files.isEmpty()) return;
+		metrics.scanned.add(files.size());
 		
-		var files = Files
-				.walk(pth, md)
-				.filter(Files::isRegularFile)
-				.filter(p ->
+		List<Delivery> resumed = new ArrayList<>();
+		List<Delivery> direct = new ArrayList<>();
+		List<Delivery> checked = new ArrayList<>();
+		for(File f : files)
+		{
+			if(inFlight.contains(f)) continue;
+			deliveries.acquire();
+			inFlight.add(f);
+			var delivery = plan(f);
+			if(delivery == null)
+			{
+				release(f);
+				continue;
+			}
+			if(!delivery.resumed.isEmpty()) resumed.add(delivery);
+			if(!delivery.unchecked.isEmpty()) (delivery.hashed == null && isSinglePass(f) ? direct : checked).add(delivery);
+		}
+		
+		int batchSize = immich.getBulkCheckBatchSize();
+		List<List<Delivery>> batches = new ArrayList<>();
+		for(int i = 0; i < checked.size(); i += batchSize)
+			batches.add(checked.subList(i, Math.min(checked.size(), i + batchSize)));
+		
+		try
+		{
+			if(!resumed.isEmpty())
+			{
+				log.info("Resuming {} accepted uploads...", resumed.size());
+				for(var delivery : resumed)
+					delivery.resumed.forEach((destination, checksum) -> submitUpload(delivery, destination, checksum));
+			}
+			
+			if(!direct.isEmpty())
+			{
+				log.log(fileLevel(), "Uploading {} large files in a single pass...", direct.size());
+				for(var delivery : direct)
+					for(var destination : delivery.unchecked)
+						submitUpload(delivery, destination, null);
+			}
+			
+			if(batches.isEmpty()) return;
+			
+			var hashing = CompletableFuture.supplyAsync(() -> hash(batches.getFirst()), pipeline);
+			
+			for(int i = 0; i < batches.size(); i++)
+			{
+				var hashes = hashing.join();
+				if(i + 1 < batches.size())
 				{
-					var fn = p.getFileName().toString();
-					
-					int lastDot = fn.lastIndexOf('.');
-					if(lastDot < 0) return false;
-					
-					return immich
-							.getFlatMediaTypesCache()
-							.contains(fn.substring(lastDot).toLowerCase(Locale.ROOT))
-							&& fileNameMatches(fn);
-				})
-				.map(Path::toFile)
-				// file wasn't touched for 5 seconds, probably safe to move it now
-				.filter(f -> System.currentTimeMillis() - f.lastModified() > 5000L)
-				.toList();
-		
-		var files2Upload = immich.bulkUploadCheck(files);
-		
-		if(!files2Upload.isEmpty())
-		{
-			System.out.println("Uploading " + files2Upload.size() + " images...");
-			for(File file : files2Upload)
-			{
-				remapTimestamps(file);
+					var next = batches.get(i + 1);
+					hashing = CompletableFuture.supplyAsync(() -> hash(next), pipeline);
+				}
 				
-				System.out.println("Uploading " + file.getName() + " . . .");
-				JsonObject res = immich.uploadImage(file);
-				if(res.has("status") && res.getAsJsonPrimitive("status").getAsString().equalsIgnoreCase("duplicate"))
+				check(batches.get(i), hashes);
+			}
+		} finally
+		{
+			for(var destination : destinations)
+				destination.target().albums().flush();
+		}
+	}
+	
+	/**
+	 * Ends the delivery of the file, so scans pick it up again.
+	 */
+	protected void release(File file)
+	{
+		inFlight.remove(file);
+		deliveries.release();
+	}
+	
+	/**
+	 * Looks up how far the file got with every destination, finishing the album assignment of those that already have it.
+	 *
+	 * @return the file's delivery, or null if every destination already has it and it was deleted.
+	 */
+	protected @Nullable Delivery plan(File file)
+	{
+		var delivery = new Delivery(file);
+		for(var destination : destinations)
+		{
+			var journal = destination.target().journal();
+			var entry = journal.lookup(file);
+			if(entry == null) journal.discovered(file);
+			else if(entry.state() == UploadJournal.State.HASHED && !entry.checksum().isEmpty()) delivery.hashed = entry.checksum();
+			else if(!entry.assetId().isEmpty())
+			{
+				assignAlbum(destination, file, entry);
+				continue;
+			} else if(entry.state() == UploadJournal.State.CHECKED)
+			{
+				delivery.resumed.put(destination, entry.checksum());
+				continue;
+			}
+			
+			delivery.unchecked.add(destination);
+		}
+		
+		if(delivery.resumed.isEmpty() && delivery.unchecked.isEmpty())
+		{
+			log.log(fileLevel(), "Upload of {} was completed before, deleting it.", file);
+			deleteFile(file);
+			return null;
+		}
+		
+		delivery.pending.set(delivery.resumed.size() + delivery.unchecked.size());
+		return delivery;
+	}
+	
+	/**
+	 * Hash stage of the pipeline. Files with a checksum journaled before a restart are not hashed again, see {@link Delivery#hashed}.
+	 */
+	protected Map<File, String> hash(List<Delivery> batch)
+	{
+		List<File> unhashed = new ArrayList<>();
+		for(var delivery : batch)
+			if(delivery.hashed == null) unhashed.add(delivery.file);
+		
+		long start = System.nanoTime();
+		var computed = immich.checksums(unhashed);
+		metrics.hashStage.observeSince(start);
+		metrics.hashed.add(computed.size());
+		
+		Map<File, String> hashes = new LinkedHashMap<>();
+		for(var delivery : batch)
+		{
+			var checksum = delivery.hashed != null ? delivery.hashed : computed.get(delivery.file);
+			if(checksum == null) continue;
+			hashes.put(delivery.file, checksum);
+			for(var destination : delivery.unchecked)
+				destination.target().journal().hashed(delivery.file, checksum);
+		}
+		return hashes;
+	}
+	
+	/**
+	 * Check stage of the pipeline: asks every destination at once which files of the batch it still needs,
+	 * then submits those uploads. Only files a destination explicitly rejected count as done there; a destination that cannot be asked,
+	 * or that leaves a file unanswered, has it tried again later. Files the destination's checksum mirror does not know are uploaded
+	 * right away instead of being asked about, see {@link ImmichEngine#isMirrorMiss(String)}, unless they are to be recompressed,
+	 * since the server could not dedupe the copy by the original's checksum.
+	 * Every destination is asked as soon as it is reachable, so the stage waits for the slowest destination to come up.
+	 */
+	@SneakyThrows
+	protected void check(List<Delivery> batch, Map<File, String> hashes)
+	{
+		List<Delivery> hashed = new ArrayList<>();
+		for(var delivery : batch)
+		{
+			if(hashes.containsKey(delivery.file)) hashed.add(delivery);
+			else delivery.unchecked.forEach(destination -> delivery.done(false));
+		}
+		
+		long checkStart = System.nanoTime();
+		List<Check> checks = new ArrayList<>();
+		for(var destination : destinations)
+		{
+			List<Delivery> asked = new ArrayList<>();
+			Map<File, String> request = new LinkedHashMap<>();
+			for(var delivery : hashed)
+				if(delivery.unchecked.contains(destination))
 				{
-					System.out.println("File " + file.getName() + " already exists!");
-					file.delete();
-					continue;
+					var checksum = hashes.get(delivery.file);
+					if(!isRecompressible(delivery.file) && destination.target().immich().isMirrorMiss(checksum))
+					{
+						submitUpload(delivery, destination, checksum);
+						continue;
+					}
+					asked.add(delivery);
+					request.put(delivery.file, checksum);
 				}
+			if(asked.isEmpty()) continue;
+			var engine = destination.target().immich();
+			checks.add(new Check(destination, asked, engine.reachable().thenCompose(v -> engine.bulkUploadCheckAsync(request))));
+		}
+		CompletableFuture.allOf(checks.stream().map(Check::result).toArray(CompletableFuture[]::new)).handle((v, e) -> null).get();
+		metrics.checkStage.observeSince(checkStart);
+		
+		for(var check : checks)
+		{
+			var target = check.destination().target();
+			ImmichEngine.BulkCheck result;
+			try
+			{
+				result = check.result().join();
+			} catch(CompletionException e)
+			{
+				log.error("Failed to check {} files with {}, trying them again later.", check.asked().size(), target.name(), e.getCause());
+				check.asked().forEach(delivery -> delivery.done(false));
+				continue;
+			}
+			
+			if(!result.accepted().isEmpty()) log.log(fileLevel(), "Uploading {} images to {}...", result.accepted().size(), target.name());
+			var files2Upload = new HashSet<>(result.accepted());
+			var rejected = new HashSet<>(result.rejected());
+			for(var delivery : check.asked())
+			{
+				if(files2Upload.contains(delivery.file))
+				{
+					submitUpload(delivery, check.destination(), hashes.get(delivery.file));
+				} else if(rejected.contains(delivery.file))
+				{
+					metrics.skipped.inc();
+					delivery.done(true);
+				} else
+				{
+					log.warn("{} did not answer for {}, trying it again later.", target.name(), delivery.file);
+					delivery.done(false);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Remaps the file's timestamps and queues its upload to the destination. The accepted checksum is journaled only after the remap,
+	 * since the entry carries the file's modification time and would not match the remapped file after a restart otherwise.
+	 */
+	protected void submitUpload(Delivery delivery, Destination destination, @Nullable String checksum)
+	{
+		if(!delivery.remapTimestamps())
+		{
+			delivery.done(false);
+			return;
+		}
+		if(checksum != null) destination.target().journal().checked(delivery.file, checksum);
+		delivery.recompress();
+		
+		metrics.uploadBacklog.incrementAndGet();
+		pipeline.submit(() ->
+		{
+			try
+			{
+				upload(delivery, destination, checksum);
+			} finally
+			{
+				metrics.uploadBacklog.decrementAndGet();
+			}
+		});
+	}
+	
+	/**
+	 * Files at or above {@link FolderConfig#singlePassMinMegabytes()} whose checksum is not known yet are uploaded
+	 * without a prior bulk check; their checksum is computed from the upload stream, so they are read from disk only once.
+	 * The server still dedupes them and answers with a duplicate status. Files to recompress are never sent in a single pass.
+	 */
+	protected boolean isSinglePass(File file)
+	{
+		int mb = config.singlePassMinMegabytes();
+		return mb > 0 && file.length() >= mb * 1024L * 1024L && !isRecompressible(file) && immich.knownChecksum(file) == null;
+	}
+	
+	/**
+	 * PNG files of folders with {@link FolderConfig#recompressPng()} are sent as a lossless copy when that saves at least
+	 * {@link FolderConfig#recompressMinGainPercent()} of their size. The bulk check and the journal use the original's checksum,
+	 * so only files a destination accepted are recompressed, and the upload carries the copy's checksum.
+	 * A copy only lives as long as its {@link Delivery}; an upload accepted before a restart is recompressed again.
+	 */
+	protected boolean isRecompressible(File file)
+	{
+		return recompressor != null && config.recompressPng() && file.getName().regionMatches(true, file.getName().length() - 4, ".png", 0, 4);
+	}
+	
+	/**
+	 * Upload stage of the pipeline, run on its own virtual thread for every accepted file and destination.
+	 * Only the network round trip is held under the upload permits; album assignment and deletion happen after release.
+	 */
+	protected void upload(Delivery delivery, Destination destination, @Nullable String checksum)
+	{
+		var file = delivery.file;
+		var target = destination.target();
+		
+		JsonObject res;
+		try
+		{
+			target.immich().awaitReachable();
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			delivery.done(false);
+			return;
+		}
+		
+		var copy = delivery.copy();
+		long size = copy != null ? copy.size() : file.length();
+		var lane = limiter.laneOf(size, videoExtensions().matches(file.getName()));
+		UploadLimiter.Permit permit;
+		try
+		{
+			permit = limiter.acquire(folderUploads, size, lane, config.priority());
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			delivery.done(false);
+			return;
+		}
+		
+		try
+		{
+			log.log(fileLevel(), "Uploading {} to {} . . .", file, target.name());
+			long start = System.nanoTime();
+			res = copy != null
+					? target.immich().uploadImage(file, copy.path(), copy.checksum(), bandwidth)
+					: target.immich().uploadImage(file, null, checksum, bandwidth);
+			metrics.uploadStage.observeSince(start);
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			delivery.done(false);
+			return;
+		} catch(Exception e)
+		{
+			metrics.failed.inc();
+			log.warn("Failed to upload {} to {}", file, target.name(), e);
+			delivery.done(false);
+			return;
+		} finally
+		{
+			permit.close();
+		}
+		
+		if(res != null && res.has("status") && res.getAsJsonPrimitive("status").getAsString().equalsIgnoreCase("duplicate"))
+		{
+			metrics.duplicates.inc();
+			log.log(fileLevel(), "File {} already exists on {}!", file, target.name());
+			delivery.done(true);
+			return;
+		}
+		
+		if(res == null || !res.has("id"))
+		{
+			// an error response, such as HTTP 500 with a message; the file stays in the journal and is tried again
+			metrics.failed.inc();
+			log.warn("Upload of {} was not accepted: {}", file, res);
+			delivery.done(false);
+			return;
+		}
+		
+		metrics.uploaded.inc();
+		log.log(fileLevel(), "Upload of {} to {} OK!", file, target.name());
+		
+		var assetId = res.getAsJsonPrimitive("id").getAsString();
+		try
+		{
+			// the upload must be on disk before the file is gone, or a crash in between would lose track of it
+			target.journal().uploaded(file, assetId, destination.albumId()).join();
+		} catch(CompletionException e)
+		{
+			log.error("Keeping {} since its upload to {} could not be journaled.", file, target.name(), e);
+			delivery.done(false);
+			return;
+		}
+		
+		target.albums().add(destination.albumId(), assetId, () -> target.journal().albumAssigned(file));
+		delivery.done(true);
+	}
+	
+	/**
+	 * Completes the album assignment of a file a destination got before a restart.
+	 */
+	protected void assignAlbum(Destination destination, File file, UploadJournal.Entry entry)
+	{
+		var target = destination.target();
+		if(!entry.album().isEmpty() && !entry.albumAssigned())
+			target.albums().add(entry.album(), entry.assetId(), () -> target.journal().albumAssigned(file));
+	}
+	
+	/**
+	 * Picks up the uploads below the given root that the journals hold from a previous run.
+	 * A file that is gone or that every destination got is deleted; any other one goes through the pipeline again with the next scan.
+	 */
+	protected void resumeJournal(Path root)
+	{
+		var base = root.toAbsolutePath().normalize();
+		int resumed = 0;
+		Set<File> uploaded = new LinkedHashSet<>();
+		for(var destination : destinations)
+		{
+			var journal = destination.target().journal();
+			for(var e : new ArrayList<>(journal.entries().entrySet()))
+			{
+				var entry = e.getValue();
+				var file = new File(e.getKey());
+				if(entry.assetId().isEmpty() || !file.toPath().startsWith(base)) continue;
 				
-				if(res.has("id"))
+				if(!entry.deleted() && file.exists() && journal.lookup(file) == null)
 				{
-					System.out.println("Upload of " + file.getName() + " OK!");
-					file.delete();
-					
-					String alb = config.albumId();
-					if(alb != null && !alb.isBlank()) immich.addToAlbum(alb, List.of(res));
+					// the file was replaced since it was uploaded, so it goes through the pipeline again
+					journal.deleted(file);
+					entry = entry.withDeleted(true);
 				}
+				
+				assignAlbum(destination, file, entry);
+				if(!entry.deleted()) uploaded.add(file);
+				resumed++;
 			}
 		}
 		
-		var skipFiles = new ArrayList<>(files);
-		skipFiles.removeAll(files2Upload);
-		for(File f : skipFiles) f.delete();
+		for(File file : uploaded)
+			if(!file.exists() || isEverywhere(file))
+			{
+				log.log(fileLevel(), "Upload of {} was completed before, deleting it.", file);
+				deleteFile(file);
+			}
+		
+		if(resumed > 0)
+		{
+			log.info("Resumed {} uploads from the journal", resumed);
+			for(var destination : destinations)
+				destination.target().albums().flush();
+		}
+	}
+	
+	/**
+	 * @return whether every destination's journal has an asset for the file as it is now.
+	 */
+	protected boolean isEverywhere(File file)
+	{
+		for(var destination : destinations)
+		{
+			var entry = destination.target().journal().lookup(file);
+			if(entry == null || entry.assetId().isEmpty()) return false;
+		}
+		return true;
+	}
+	
+	protected void deleteFile(File file)
+	{
+		if(!file.delete() && file.exists()) return;
+		for(var destination : destinations)
+			destination.target().journal().deleted(file);
+		var checksums = immich.getChecksumIndex();
+		if(checksums != null) checksums.forget(file);
 	}
 	
 	@Override
-	public void run()
+	public String name()
+	{
+		return config.path();
+	}
+	
+	/**
+	 * Watched folders only need the periodic full rescan, since changes wake them up; polled folders adapt within their configured bounds.
+	 */
+	@Override
+	public Duration minInterval()
+	{
+		return watcher != null ? Duration.ofSeconds(config.fullRescanSeconds()) : Duration.ofSeconds(config.minScanSeconds());
+	}
+	
+	@Override
+	public Duration maxInterval()
+	{
+		return watcher != null ? Duration.ofSeconds(config.fullRescanSeconds()) : Duration.ofSeconds(config.maxScanSeconds());
+	}
+	
+	/**
+	 * Resumes journaled uploads, starts watching the folder if configured, and hands its scans over to the scheduler.
+	 */
+	public void start(ScanScheduler scheduler)
 	{
+		this.scheduler = scheduler;
+		
 		var pth = Path.of(config.path());
-		System.out.println("Started folder watch service @ " + pth);
+		log.info("Started folder watch service");
+		resumeJournal(pth);
+		
+		if(config.watchEvents())
+		{
+			try
+			{
+				watcher = new FolderWatcher(pth, maxDepth());
+				log.info("Watching for file system events");
+				Thread.ofVirtual().name("FolderWatcher").start(this::watch);
+			} catch(IOException | UnsupportedOperationException e)
+			{
+				log.warn("Unable to watch the folder, falling back to periodic scans.", e);
+			}
+		}
 		
+		scheduler.register(this);
+		// without cached media types the first scans find nothing, so the folder is scanned again as soon as they arrive
+		if(immich.getFlatMediaTypesCache().isEmpty())
+			immich.mediaTypesKnown().thenRun(() -> scheduler.wake(this, Duration.ZERO));
+	}
+	
+	/**
+	 * Collects file system events and wakes the folder up for them; the changes themselves are processed in {@link #runScan()}.
+	 */
+	protected void watch()
+	{
+		var watcher = this.watcher;
+		Set<Path> changed = new LinkedHashSet<>();
 		while(true)
 		{
 			try
 			{
-				Thread.sleep(period);
-			} catch(InterruptedException e)
+				if(!watcher.poll(changed, Duration.ofMinutes(1L))) continue;
+			} catch(InterruptedException | ClosedWatchServiceException e)
 			{
 				break;
 			}
 			
-			System.out.println("Tick Start @ " + pth);
-			try
+			synchronized(pending)
 			{
-				runCheck(pth);
-			} catch(Exception e)
+				pending.addAll(changed);
+				metrics.pendingChanges.set(pending.size());
+			}
+			changed.clear();
+			scheduler.wake(this, SETTLE_POLL);
+		}
+		log.info("Stopped folder watch service");
+	}
+	
+	@Override
+	public boolean runScan()
+	{
+		if(!log.isSummary()) return scanFolder();
+		
+		var before = counts();
+		long start = System.nanoTime();
+		boolean found = scanFolder();
+		summarize(before, start);
+		return found;
+	}
+	
+	/**
+	 * Level of the lines logged for every file, which summary mode replaces with {@link #summarize}.
+	 */
+	protected Level fileLevel()
+	{
+		return log.isSummary() ? Level.DEBUG : Level.INFO;
+	}
+	
+	protected long[] counts()
+	{
+		return new long[] {metrics.scanned.get(), metrics.uploaded.get(), metrics.duplicates.get(), metrics.skipped.get(), metrics.failed.get()};
+	}
+	
+	/**
+	 * Logs one line with what a run did since the {@code before} counts, unless it did nothing.
+	 */
+	protected void summarize(long[] before, long start)
+	{
+		var after = counts();
+		if(Arrays.equals(before, after)) return;
+		log.info("Processed %d files in %d ms: %d uploaded, %d duplicates, %d skipped, %d failed".formatted(
+				after[0] - before[0], TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+				after[1] - before[1], after[2] - before[2], after[3] - before[3], after[4] - before[4]
+		));
+	}
+	
+	/**
+	 * One scheduled run: a full rescan when it is due (always, for polled folders), otherwise only the changes reported by the watcher.
+	 */
+	protected boolean scanFolder()
+	{
+		var watcher = this.watcher;
+		
+		// nothing is a candidate before the media types are known, and snapshots taken with other types filtered the wrong files
+		var types = immich.getFlatMediaTypesCache();
+		if(types.isEmpty()) return false;
+		var typesChanged = !types.equals(scannedTypes);
+		scannedTypes = types;
+		
+		var overflowed = watcher != null && watcher.consumeOverflow();
+		if(watcher == null || overflowed || typesChanged || !Instant.now().isBefore(nextRescan))
+		{
+			// lost events may include in-place modifications, which only a full listing catches
+			if(overflowed || typesChanged) scanner.reset();
+			synchronized(pending)
 			{
-				System.out.println("Failed to run tick!");
-				e.printStackTrace(System.out);
+				pending.clear();
 			}
-			System.out.println("Tick End @ " + pth);
+			int processed = tick();
+			nextRescan = Instant.now().plusSeconds(config.fullRescanSeconds());
+			return processed > 0;
 		}
 		
-		System.out.println("Stopped folder watch service @ " + pth);
+		List<Path> changed;
+		synchronized(pending)
+		{
+			if(pending.isEmpty()) return false;
+			changed = new ArrayList<>(pending);
+			pending.clear();
+		}
+		
+		try
+		{
+			var unsettled = runCheck(changed);
+			synchronized(pending)
+			{
+				pending.addAll(unsettled);
+				metrics.pendingChanges.set(pending.size());
+			}
+			// while something is waiting to settle, come back regularly to re-check it
+			if(!unsettled.isEmpty()) scheduler.wake(this, SETTLE_POLL);
+		} catch(Exception e)
+		{
+			log.error("Failed to process changes", e);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the number of files that were processed.
+	 */
+	protected int tick()
+	{
+		log.log(fileLevel(), "Tick Start");
+		int processed = 0;
+		try
+		{
+			processed = runCheck();
+		} catch(Exception e)
+		{
+			log.error("Failed to run tick!", e);
+		}
+		log.log(fileLevel(), "Tick End");
+		return processed;
 	}
 	
 	protected void remapTimestamps(File file)
 	{
 		var p = file.toPath();
-		var name = p.toFile().getName();
 		
-		var match = timeRemappers
-				.entrySet()
-				.stream()
-				.map(e -> Map.entry(e.getKey().matcher(name), e.getValue()))
-				.filter(e -> e.getKey().find())
-				.findFirst()
-				.orElse(null);
+		Instant time;
+		try
+		{
+			time = rules.timestamp(file.getName());
+		} catch(DateTimeParseException e)
+		{
+			log.warn("Failed to parse {} inside {}", e.getParsedString(), file);
+			return;
+		}
 		
-		if(match == null)
+		if(time == null)
 			return;
 		
-		System.out.println("Remapping timestamps for " + file.getName());
+		log.log(fileLevel(), "Remapping timestamps for {}", file);
 		
-		var time = match
-				.getKey()
-				.group("time")
-				.replace('.', '-')
-				.replace('_', '-')
-				.replace(' ', '-');
 		try
 		{
-			Date parse = match.getValue().parse(time);
-			var inst = FileTime.from(parse.toInstant());
+			var inst = FileTime.from(time);
 			BasicFileAttributeView attrs = Files.getFileAttributeView(p, BasicFileAttributeView.class);
 			attrs.setTimes(inst, inst, inst);
-			System.out.println("Timestamp for " + file.getName() + " has been remapped to " + inst.toInstant().toString());
-		} catch(NumberFormatException nfe)
-		{
-			System.out.println("Failed to parse " + time + " inside " + match.getKey().group());
+			log.log(fileLevel(), "Timestamp for {} has been remapped to {}", file, time);
 		} catch(Exception e)
 		{
-			e.printStackTrace();
 			throw new RuntimeException(e);
 		}
 	}
@@ -0,0 +1,60 @@
+package dev.zeith.immich;
+
+import dev.zeith.immich.metrics.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metric handles of a single folder service, all labelled with the folder path.
+ */
+public class FolderMetrics
+{
+	public final Counter scanned;
+	public final Counter hashed;
+	public final Counter skipped;
+	public final Counter uploaded;
+	public final Counter duplicates;
+	public final Counter failed;
+	public final Counter recompressed;
+	public final Counter recompressSaved;
+	
+	public final Histogram scanStage;
+	public final Histogram hashStage;
+	public final Histogram checkStage;
+	public final Histogram uploadStage;
+	
+	/**
+	 * Files handed to the upload stage that have not finished uploading yet.
+	 */
+	public final AtomicInteger uploadBacklog = new AtomicInteger();
+	
+	/**
+	 * Changed paths reported by the watcher that have not been processed yet.
+	 */
+	public final AtomicInteger pendingChanges = new AtomicInteger();
+	
+	public FolderMetrics(MetricsRegistry registry, String folder)
+	{
+		scanned = registry.counter("immich_files_scanned_total", "Candidate files found by folder scans and watch events.", "folder", folder);
+		hashed = registry.counter("immich_files_hashed_total", "Files whose checksum was determined for a bulk check.", "folder", folder);
+		skipped = registry.counter("immich_files_skipped_total", "Files the bulk check reported as already present on the server.", "folder", folder);
+		uploaded = registry.counter("immich_files_uploaded_total", "Files uploaded as new assets.", "folder", folder);
+		duplicates = registry.counter("immich_files_duplicate_total", "Uploads the server answered with a duplicate status.", "folder", folder);
+		failed = registry.counter("immich_files_failed_total", "Uploads that failed and will be retried later.", "folder", folder);
+		recompressed = registry.counter("immich_files_recompressed_total", "PNG files sent as a smaller lossless copy.", "folder", folder);
+		recompressSaved = registry.counter("immich_recompress_saved_bytes_total", "Bytes the lossless PNG copies are smaller than their files.", "folder", folder);
+		
+		scanStage = stage(registry, folder, "scan");
+		hashStage = stage(registry, folder, "hash");
+		checkStage = stage(registry, folder, "check");
+		uploadStage = stage(registry, folder, "upload");
+		
+		registry.gauge("immich_upload_backlog", "Files waiting for or in the upload stage.", uploadBacklog::get, "folder", folder);
+		registry.gauge("immich_watch_pending", "Changed paths waiting to be processed.", pendingChanges::get, "folder", folder);
+	}
+	
+	private static Histogram stage(MetricsRegistry registry, String folder, String stage)
+	{
+		return registry.latency("immich_stage_seconds", "Time spent in each pipeline stage, per batch (per file for uploads).", "folder", folder, "stage", stage);
+	}
+}
@@ -0,0 +1,137 @@
+package dev.zeith.immich;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a folder tree up to a given depth and collects the paths that were created or modified.
+ * Directories that appear later are registered on the fly, and their existing contents are reported as changed,
+ * since anything written before registration would otherwise go unnoticed until the next full rescan.
+ */
+public class FolderWatcher
+		implements Closeable
+{
+	protected final Path root;
+	protected final int maxDepth;
+	protected final WatchService watchService;
+	protected final Map<WatchKey, Path> keys = new HashMap<>();
+	
+	protected volatile boolean overflowed;
+	
+	public FolderWatcher(Path root, int maxDepth)
+			throws IOException
+	{
+		this.root = root;
+		this.maxDepth = maxDepth;
+		this.watchService = root.getFileSystem().newWatchService();
+		registerTree(root, null);
+	}
+	
+	/**
+	 * Waits up to the given timeout for events and adds every created or modified path to {@code changed}.
+	 *
+	 * @return true if any event has been received.
+	 */
+	public boolean poll(Set<Path> changed, Duration timeout)
+			throws InterruptedException
+	{
+		var key = watchService.poll(Math.max(0L, timeout.toMillis()), TimeUnit.MILLISECONDS);
+		if(key == null) return false;
+		
+		do
+		{
+			handle(key, changed);
+		} while((key = watchService.poll()) != null);
+		
+		return true;
+	}
+	
+	/**
+	 * @return true if events were lost since the last call, in which case the caller should fall back to a full rescan.
+	 */
+	public boolean consumeOverflow()
+	{
+		var o = overflowed;
+		overflowed = false;
+		return o;
+	}
+	
+	protected void handle(WatchKey key, Set<Path> changed)
+	{
+		var dir = keys.get(key);
+		
+		for(WatchEvent<?> event : key.pollEvents())
+		{
+			if(event.kind() == OVERFLOW)
+			{
+				overflowed = true;
+				continue;
+			}
+			
+			if(dir == null || !(event.context() instanceof Path name))
+				continue;
+			
+			var child = dir.resolve(name);
+			if(event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+			{
+				try
+				{
+					registerTree(child, changed);
+				} catch(IOException e)
+				{
+					overflowed = true;
+				}
+				continue;
+			}
+			
+			changed.add(child);
+		}
+		
+		if(!key.reset())
+			keys.remove(key);
+	}
+	
+	protected void registerTree(Path start, Set<Path> discovered)
+			throws IOException
+	{
+		int startDepth = root.relativize(start).getNameCount() - (start.equals(root) ? 1 : 0);
+		if(startDepth >= maxDepth) return;
+		
+		Files.walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), maxDepth - startDepth, new SimpleFileVisitor<>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+					throws IOException
+			{
+				keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				if(discovered != null && attrs.isRegularFile()) discovered.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc)
+			{
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	@Override
+	public void close()
+			throws IOException
+	{
+		watchService.close();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,325 @@
+package dev.zeith.immich;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.*;
+
+/**
+ * Scans a folder tree tick after tick, yielding only candidates that are new or changed since they were last yielded.
+ * <p>
+ * Every directory is remembered with its modification time, entry count, subdirectories and candidate files.
+ * A directory whose modification time did not change has had nothing added, removed or renamed, so it is not listed again;
+ * only the candidates still lingering in it (incomplete, in flight or failed) are re-stat'ed, and its known subdirectories are visited in turn.
+ * Changed directories are listed with {@link Files#walkFileTree}, which hands out the attributes of each entry once
+ * (on Windows straight from the directory listing itself).
+ * <p>
+ * Whether a candidate is complete is up to {@link WriteCompletion}, which sees for how long the candidate has been observed unchanged.
+ * <p>
+ * Results can be handed out in bounded windows while the scan is still running, so a tick over a huge tree
+ * never holds more than one window of candidates.
+ * <p>
+ * Scans are serialized by a {@link ReentrantLock} rather than a monitor, since window consumers block on virtual threads
+ * and a virtual thread blocking inside {@code synchronized} pins its carrier. {@link #retry(File)} may be called from any thread,
+ * including from a window consumer.
+ */
+public class IncrementalScanner
+{
+	/**
+	 * File systems with coarse timestamps can change a directory twice within the same modification time,
+	 * so directories modified this recently are never trusted to be unchanged.
+	 */
+	protected static final long RACY_MILLIS = 2000L;
+	
+	protected final Path root;
+	protected final int maxDepth;
+	protected final Predicate<String> candidateName;
+	protected final WriteCompletion completion;
+	
+	protected final Map<Path, DirSnapshot> directories = new HashMap<>();
+	protected final Queue<Path> retries = new ConcurrentLinkedQueue<>();
+	protected final ReentrantLock lock = new ReentrantLock();
+	
+	protected static class DirSnapshot
+	{
+		long lastModified = Long.MIN_VALUE;
+		int entries;
+		List<Path> subdirectories = List.of();
+		Map<Path, Candidate> candidates = new HashMap<>();
+	}
+	
+	protected static class Candidate
+	{
+		long size, lastModified, unchangedSince;
+		boolean yielded;
+		
+		/**
+		 * A file first seen with an old modification time is taken to have been unchanged since then,
+		 * so complete files are not held back again after a restart.
+		 */
+		Candidate(BasicFileAttributes attrs, long now)
+		{
+			this.size = attrs.size();
+			this.lastModified = attrs.lastModifiedTime().toMillis();
+			this.unchangedSince = Math.min(now, lastModified);
+		}
+		
+		void update(BasicFileAttributes attrs, long now)
+		{
+			long size = attrs.size(), lastModified = attrs.lastModifiedTime().toMillis();
+			if(this.size == size && this.lastModified == lastModified) return;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.unchangedSince = now;
+			this.yielded = false;
+		}
+	}
+	
+	protected record Tick(long now, int window, Consumer<List<File>> sink, List<File> found)
+	{
+		void yield(Path file)
+		{
+			found.add(file.toFile());
+			if(found.size() >= window) drain();
+		}
+		
+		void drain()
+		{
+			if(found.isEmpty()) return;
+			var files = List.copyOf(found);
+			found.clear();
+			sink.accept(files);
+		}
+	}
+	
+	public IncrementalScanner(Path root, int maxDepth, Predicate<String> candidateName, WriteCompletion completion)
+	{
+		this.root = root;
+		this.maxDepth = maxDepth;
+		this.candidateName = candidateName;
+		this.completion = completion;
+	}
+	
+	/**
+	 * @return candidates that are complete and were not yielded before in their current state.
+	 */
+	public List<File> scan()
+			throws IOException
+	{
+		List<File> found = new ArrayList<>();
+		scan(Integer.MAX_VALUE, found::addAll);
+		return found;
+	}
+	
+	/**
+	 * Scans the tree and hands the candidates to {@code sink} in lists of at most {@code window} files,
+	 * as soon as each window is full. If the sink throws, the scan stops and the files of that window are yielded again by the next one.
+	 */
+	public void scan(int window, Consumer<List<File>> sink)
+			throws IOException
+	{
+		lock.lock();
+		try
+		{
+			applyRetries();
+			Consumer<List<File>> guarded = files ->
+			{
+				try
+				{
+					sink.accept(files);
+				} catch(Throwable e)
+				{
+					// the files were claimed when they were put into the window, so they are given back
+					files.forEach(this::retry);
+					throw e;
+				}
+			};
+			var tick = new Tick(System.currentTimeMillis(), Math.max(1, window), guarded, new ArrayList<>());
+			visit(root, 0, tick);
+			tick.drain();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Makes the file show up again in the next scan, for instance because its upload failed.
+	 */
+	public void retry(File file)
+	{
+		retries.add(file.toPath());
+	}
+	
+	protected void applyRetries()
+	{
+		Path path;
+		while((path = retries.poll()) != null)
+		{
+			var dir = directories.get(path.getParent());
+			if(dir == null) continue;
+			var candidate = dir.candidates.get(path);
+			if(candidate != null) candidate.yielded = false;
+		}
+	}
+	
+	/**
+	 * Forgets all snapshots, so the next scan lists the whole tree and yields every candidate again.
+	 */
+	public void reset()
+	{
+		lock.lock();
+		try
+		{
+			directories.clear();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	public int trackedDirectories()
+	{
+		lock.lock();
+		try
+		{
+			return directories.size();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	public int trackedEntries()
+	{
+		lock.lock();
+		try
+		{
+			int entries = 0;
+			for(var dir : directories.values()) entries += dir.entries;
+			return entries;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	protected void visit(Path dir, int depth, Tick tick)
+			throws IOException
+	{
+		BasicFileAttributes attrs;
+		try
+		{
+			attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+		} catch(IOException e)
+		{
+			if(dir.equals(root)) throw e;
+			drop(dir);
+			return;
+		}
+		
+		var snapshot = directories.get(dir);
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		
+		if(snapshot != null && snapshot.lastModified == lastModified)
+			recheck(snapshot, tick);
+		else
+			snapshot = list(dir, depth, snapshot, tick);
+		
+		// the listing may have raced with a change, so only a settled modification time is remembered
+		snapshot.lastModified = tick.now() - lastModified > RACY_MILLIS ? lastModified : Long.MIN_VALUE;
+		
+		for(var sub : snapshot.subdirectories)
+			visit(sub, depth + 1, tick);
+	}
+	
+	protected void recheck(DirSnapshot snapshot, Tick tick)
+	{
+		for(var it = snapshot.candidates.entrySet().iterator(); it.hasNext(); )
+		{
+			var e = it.next();
+			var candidate = e.getValue();
+			try
+			{
+				candidate.update(Files.readAttributes(e.getKey(), BasicFileAttributes.class), tick.now());
+			} catch(IOException ex)
+			{
+				it.remove();
+				continue;
+			}
+			
+			if(claimIfComplete(e.getKey(), candidate, tick)) tick.yield(e.getKey());
+		}
+	}
+	
+	protected DirSnapshot list(Path dir, int depth, DirSnapshot previous, Tick tick)
+			throws IOException
+	{
+		var snapshot = new DirSnapshot();
+		var known = previous != null ? previous.candidates : Map.<Path, Candidate> of();
+		List<Path> subdirectories = new ArrayList<>();
+		
+		Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				snapshot.entries++;
+				
+				if(attrs.isDirectory())
+				{
+					if(depth + 1 < maxDepth) subdirectories.add(file);
+					return FileVisitResult.CONTINUE;
+				}
+				
+				if(!attrs.isRegularFile() || !candidateName.test(file.getFileName().toString()))
+					return FileVisitResult.CONTINUE;
+				
+				var candidate = known.get(file);
+				if(candidate == null) candidate = new Candidate(attrs, tick.now());
+				else candidate.update(attrs, tick.now());
+				
+				snapshot.candidates.put(file, candidate);
+				if(claimIfComplete(file, candidate, tick)) tick.yield(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc)
+			{
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		
+		if(previous != null && !previous.subdirectories.isEmpty())
+		{
+			var present = new HashSet<>(subdirectories);
+			for(var sub : previous.subdirectories)
+				if(!present.contains(sub))
+					drop(sub);
+		}
+		
+		snapshot.subdirectories = List.copyOf(subdirectories);
+		directories.put(dir, snapshot);
+		return snapshot;
+	}
+	
+	protected boolean claimIfComplete(Path file, Candidate candidate, Tick tick)
+	{
+		if(candidate.yielded) return false;
+		if(!completion.isComplete(file, candidate.size, candidate.lastModified, tick.now() - candidate.unchangedSince, tick.now())) return false;
+		candidate.yielded = true;
+		return true;
+	}
+	
+	protected void drop(Path dir)
+	{
+		var snapshot = directories.remove(dir);
+		if(snapshot == null) return;
+		for(var sub : snapshot.subdirectories)
+			drop(sub);
+	}
+}
\ No newline at end of file
@@ -2,16 +2,23 @@ package dev.zeith.immich;
 
 import com.google.gson.*;
 import dev.zeith.immich.cfg.*;
-import dev.zeith.immich.io.ImmichEngine;
+import dev.zeith.immich.io.*;
+import dev.zeith.immich.log.*;
+import dev.zeith.immich.metrics.*;
 import lombok.SneakyThrows;
 
-import java.io.File;
+import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.http.HttpClient;
-import java.nio.file.Files;
-import java.util.concurrent.CompletableFuture;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
 
 public class Main
 {
+	private static final Log LOG = Log.of("Main");
+	
 	private static final Gson gson = new GsonBuilder()
 			.setPrettyPrinting()
 			.serializeSpecialFloatingPointValues()
@@ -20,31 +27,162 @@ public class Main
 	@SneakyThrows
 	public static void main(String[] args)
 	{
+		long started = System.nanoTime();
 		var cfg = readConf();
+		LogWriter.DEFAULT.setLevel(Level.parse(cfg.logLevel()));
+		LogWriter.DEFAULT.setSummary(cfg.logSummary());
+		
+		if(cfg.jmxMetrics()) MetricsMBean.register(MetricsRegistry.DEFAULT);
+		if(cfg.metricsPort() > 0)
+		{
+			var metrics = new MetricsHttpServer(MetricsRegistry.DEFAULT, cfg.metricsPort());
+			LOG.info("Serving metrics on http://127.0.0.1:{}/metrics", metrics.getPort());
+		}
+		
+		var checksums = ChecksumIndex.open(configDir().resolve("checksums.idx"), Hashers.SHA1);
+		LOG.info("Loaded {} known checksums.", checksums.size());
+		
+		// every target shares the HTTP client, the checksums, the hashers and the link's bandwidth; each has its own journal, albums and mirror
+		var http = cfg.http();
+		var httpClient = createHttpClient(http);
+		var hashExecutor = Executors.newFixedThreadPool(cfg.hashThreads(), Thread.ofPlatform().name("Hasher", 0L).daemon().factory());
+		var bandwidth = cfg.bandwidth().createLimiter();
+		var mirrorCfg = cfg.checksumMirror();
+		
+		List<UploadTarget> targets = new ArrayList<>();
+		List<ServerChecksumMirror> mirrors = new ArrayList<>();
+		for(var tc : cfg.uploadTargets())
+		{
+			if(targets.stream().anyMatch(t -> t.name().equals(tc.name()))) throw new IllegalArgumentException("Upload target " + tc.name() + " is configured twice");
+			
+			var engine = new ImmichEngine(httpClient, gson, tc.immichUrl(), tc.apiKey(), checksums);
+			engine.setRequestTimeout(Duration.ofSeconds(http.requestTimeoutSeconds()));
+			engine.setUploadTimeout(http.uploadTimeoutSeconds() > 0 ? Duration.ofSeconds(http.uploadTimeoutSeconds()) : null);
+			engine.setUploadBandwidth(bandwidth);
+			engine.setBulkCheckBatchSize(cfg.bulkCheckBatchSize());
+			engine.setHashExecutor(hashExecutor);
+			
+			if(mirrorCfg.enabled())
+			{
+				var mirror = new ServerChecksumMirror(engine, mirrorCfg.pageSize(), Duration.ofMinutes(mirrorCfg.refreshMinutes()), Duration.ofHours(mirrorCfg.rebuildHours()));
+				engine.setChecksumMirror(mirror);
+				mirrors.add(mirror);
+			}
+			
+			var journal = UploadJournal.open(configDir().resolve(tc.name().equals(TargetConfig.DEFAULT) ? "journal.log" : "journal-" + tc.name() + ".log"));
+			LOG.info("Loaded {} unfinished files from the upload journal of {}.", journal.size(), tc.name());
+			
+			targets.add(new UploadTarget(tc.name(), engine, new AlbumBatcher(engine, cfg.albumBatchSize(), cfg.albumFlushSeconds()), journal));
+		}
+		
+		var engine = targets.getFirst().immich();
+		var mediaTypes = new MediaTypesCache(engine, gson, configDir().resolve("media-types.json"), Duration.ofMinutes(cfg.mediaTypesTtlMinutes()));
+		
+		// recompression only gets the spare CPU, at the lowest priority
+		var recompressor = cfg.folders().stream().anyMatch(FolderConfig::recompressPng)
+						   ? new PngRecompressor(Executors.newFixedThreadPool(cfg.recompressThreads(), Thread.ofPlatform().name("PngRecompressor", 0L).priority(Thread.MIN_PRIORITY).daemon().factory()), configDir().resolve("recompressed"))
+						   : null;
+		
+		var scheduler = new ScanScheduler(cfg.maxConcurrentScans());
+		
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			scheduler.close();
+			mediaTypes.close();
+			mirrors.forEach(ServerChecksumMirror::close);
+			targets.forEach(target -> target.albums().close());
+			try
+			{
+				for(var target : targets)
+					target.journal().close();
+				checksums.close();
+			} catch(IOException e)
+			{
+				LOG.error("Failed to close the journal or checksum index", e);
+			}
+			LogWriter.DEFAULT.close();
+		}, "ImmichShutdown"));
+		
+		if(mediaTypes.load()) LOG.info("Loaded {} cached file types.", engine.getFlatMediaTypesCache().size());
+		else LOG.info("No cached file types yet, scanning starts once {} answers.", cfg.immichUrl());
+		
+		var targetConfigs = cfg.uploadTargets();
+		for(int i = 0; i < targets.size(); i++)
+		{
+			var target = targets.get(i);
+			var url = targetConfigs.get(i).immichUrl();
+			LOG.info("Connecting to {} at {}", target.name(), url);
+			target.immich().reachable().thenRun(() -> LOG.info("Connected to {} after {} ms.", url, millisSince(started)));
+			// the primary target is pinged by the media type refresh
+			if(i > 0) Thread.ofVirtual().name("Ping-" + target.name()).start(() ->
+			{
+				try
+				{
+					target.immich().pingUntilReachable();
+				} catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		mediaTypes.start();
+		mirrors.forEach(ServerChecksumMirror::start);
 		
-		var engine = new ImmichEngine(HttpClient.newHttpClient(), gson, cfg.immichUrl(), cfg.apiKey());
+		var lanes = cfg.uploadLanes();
+		var limiter = new UploadLimiter(cfg.maxConcurrentUploads(), cfg.maxInFlightMegabytes(), lanes.smallMegabytes(), lanes.smallConcurrency(), lanes.largeConcurrency(), lanes.videoConcurrency(), lanes.starvationSeconds());
 		
-		System.out.println("Connecting to " + cfg.immichUrl());
-		engine.resolveMediaTypes();
-		System.out.println("Supported " + engine.getFlatMediaTypesCache().size() + " file types.");
+		for(var fc : cfg.folders())
+		{
+			var folder = new FolderCheckService(limiter, targets, fc);
+			folder.setRecompressor(recompressor);
+			folder.start(scheduler);
+		}
 		
-		var factory = Thread.ofVirtual().name("FolderServiceWatcher", 0L);
+		long startup = millisSince(started);
+		MetricsRegistry.DEFAULT.gauge("immich_startup_milliseconds", "Time from entering main until every folder service was scheduled.", () -> startup);
+		LOG.info("Started in {} ms ({} ms since JVM start).", startup, ManagementFactory.getRuntimeMXBean().getUptime());
 		
-		CompletableFuture
-				.allOf(cfg
-						.folders()
-						.stream()
-						.map(fc -> CompletableFuture.runAsync(new FolderCheckService(engine, fc), factory::start))
-						.toArray(CompletableFuture[]::new))
-				.join();
+		scheduler.awaitTermination();
+		LOG.info("Folder scan scheduler has been halted. Exiting.");
+	}
+	
+	private static long millisSince(long nanoTime)
+	{
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+	}
+	
+	/**
+	 * The JDK reads its connection pool keep-alive from system properties when the first client is created,
+	 * so they are set here unless given on the command line.
+	 */
+	private static HttpClient createHttpClient(HttpConfig http)
+	{
+		var keepAlive = Integer.toString(http.keepAliveSeconds());
+		if(System.getProperty("jdk.httpclient.keepalive.timeout") == null) System.setProperty("jdk.httpclient.keepalive.timeout", keepAlive);
+		if(System.getProperty("jdk.httpclient.keepalive.timeout.h2") == null) System.setProperty("jdk.httpclient.keepalive.timeout.h2", keepAlive);
 		
-		System.out.println("Folder watching threads have been halted. Exiting.");
+		return HttpClient
+				.newBuilder()
+				.version(HttpClient.Version.valueOf(http.version()))
+				.connectTimeout(Duration.ofSeconds(http.connectTimeoutSeconds()))
+				.executor(Executors.newFixedThreadPool(http.threads(), Thread.ofPlatform().name("ImmichHttp", 0L).daemon().factory()))
+				.build();
+	}
+	
+	private static Path configFile()
+	{
+		return new File("config.json").getAbsoluteFile().toPath();
+	}
+	
+	private static Path configDir()
+	{
+		return configFile().getParent();
 	}
 	
 	@SneakyThrows
 	private static MainConfig readConf()
 	{
-		var pth = new File("config.json").getAbsoluteFile().toPath();
+		var pth = configFile();
 		
 		if(!Files.isRegularFile(pth))
 		{
@@ -0,0 +1,197 @@
+package dev.zeith.immich;
+
+import dev.zeith.immich.log.Log;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Owns the scan timing of every folder.
+ * <p>
+ * Each folder is scanned again after its own interval, which drops to the folder's minimum whenever a scan found work
+ * and doubles up to its maximum while the folder stays idle. Every delay gets a random extra of up to
+ * {@link #JITTER} of itself, so folders on shared storage drift apart instead of scanning in lockstep,
+ * and at most {@code maxConcurrentScans} scans run at the same time.
+ * A folder is never scanned twice at once; a {@link #wake} that arrives during a scan is honored right after it.
+ */
+public class ScanScheduler
+		implements AutoCloseable
+{
+	private static final Log LOG = Log.of("ScanScheduler");
+	
+	protected static final double JITTER = 0.2D;
+	protected static final Duration MIN_JITTER = Duration.ofMillis(250L);
+	
+	/**
+	 * A folder as seen by the scheduler.
+	 */
+	public interface Folder
+	{
+		String name();
+		
+		Duration minInterval();
+		
+		Duration maxInterval();
+		
+		/**
+		 * Runs one scan.
+		 *
+		 * @return true if the scan found anything to do, which keeps the folder at its minimum interval.
+		 */
+		boolean runScan();
+	}
+	
+	protected static class Slot
+	{
+		final Folder folder;
+		Duration interval;
+		ScheduledFuture<?> next;
+		long nextAt;
+		boolean running;
+		Duration wakeDelay;
+		
+		Slot(Folder folder)
+		{
+			this.folder = folder;
+			this.interval = folder.minInterval();
+		}
+	}
+	
+	protected final Semaphore scans;
+	protected final ScheduledExecutorService timer;
+	protected final ExecutorService workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("FolderScan", 0L).factory());
+	protected final Map<Folder, Slot> slots = new HashMap<>();
+	protected final CountDownLatch closed = new CountDownLatch(1);
+	
+	public ScanScheduler(int maxConcurrentScans)
+	{
+		this.scans = new Semaphore(Math.max(1, maxConcurrentScans), true);
+		this.timer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("ScanScheduler").daemon().factory());
+	}
+	
+	/**
+	 * Starts scheduling the folder; its first scan runs almost immediately.
+	 */
+	public void register(Folder folder)
+	{
+		synchronized(slots)
+		{
+			var slot = new Slot(folder);
+			slots.put(folder, slot);
+			schedule(slot, Duration.ZERO);
+		}
+	}
+	
+	/**
+	 * Asks for a scan of the folder within the given delay, for instance because file system events arrived.
+	 * Also resets the folder's interval to its minimum, since it is evidently active.
+	 */
+	public void wake(Folder folder, Duration delay)
+	{
+		synchronized(slots)
+		{
+			var slot = slots.get(folder);
+			if(slot == null) return;
+			
+			slot.interval = folder.minInterval();
+			if(slot.running)
+			{
+				if(slot.wakeDelay == null || delay.compareTo(slot.wakeDelay) < 0) slot.wakeDelay = delay;
+				return;
+			}
+			
+			if(System.nanoTime() + delay.toNanos() < slot.nextAt)
+				schedule(slot, delay);
+		}
+	}
+	
+	/**
+	 * Blocks until the scheduler is closed.
+	 */
+	public void awaitTermination()
+			throws InterruptedException
+	{
+		closed.await();
+	}
+	
+	protected void schedule(Slot slot, Duration delay)
+	{
+		if(timer.isShutdown()) return;
+		if(slot.next != null) slot.next.cancel(false);
+		
+		long nanos = jitter(delay).toNanos();
+		slot.nextAt = System.nanoTime() + nanos;
+		slot.next = timer.schedule(() -> workers.execute(() -> run(slot)), nanos, TimeUnit.NANOSECONDS);
+	}
+	
+	protected static Duration jitter(Duration delay)
+	{
+		long spread = Math.max(MIN_JITTER.toNanos(), (long) (delay.toNanos() * JITTER));
+		return delay.plusNanos(ThreadLocalRandom.current().nextLong(spread));
+	}
+	
+	protected void run(Slot slot)
+	{
+		synchronized(slots)
+		{
+			if(slot.running) return;
+			slot.running = true;
+			slot.next = null;
+		}
+		
+		boolean active = false;
+		try
+		{
+			scans.acquire();
+			try
+			{
+				active = slot.folder.runScan();
+			} finally
+			{
+				scans.release();
+			}
+		} catch(InterruptedException e)
+		{
+			return;
+		} catch(Exception e)
+		{
+			LOG.error("Scan of {} failed!", slot.folder.name(), e);
+		} finally
+		{
+			synchronized(slots)
+			{
+				slot.running = false;
+				
+				var min = slot.folder.minInterval();
+				var max = slot.folder.maxInterval();
+				if(active) slot.interval = min;
+				else
+				{
+					var backoff = slot.interval.multipliedBy(2L);
+					slot.interval = backoff.compareTo(max) > 0 ? max : backoff;
+				}
+				
+				var delay = slot.interval;
+				if(slot.wakeDelay != null && slot.wakeDelay.compareTo(delay) < 0) delay = slot.wakeDelay;
+				slot.wakeDelay = null;
+				schedule(slot, delay);
+			}
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		synchronized(slots)
+		{
+			timer.shutdownNow();
+			slots.values().forEach(slot ->
+			{
+				if(slot.next != null) slot.next.cancel(false);
+			});
+		}
+		workers.shutdownNow();
+		closed.countDown();
+	}
+}
\ No newline at end of file
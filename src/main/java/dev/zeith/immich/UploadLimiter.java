@@ -0,0 +1,296 @@
+package dev.zeith.immich;
+
+import dev.zeith.immich.metrics.MetricsRegistry;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Process-wide bounds for the upload stage: how many uploads may be on the wire at once,
+ * and how many bytes the uploads of each lane may carry in total.
+ * Folder services stack their own per-folder semaphore on top of these.
+ * <p>
+ * Uploads wait in {@link Lane}s by size and media type, and each lane has its own share of the upload slots.
+ * A free slot goes to the waiting upload of the highest folder priority whose folder has a permit to spare,
+ * and among equal priorities to the lane of the smallest files, so a screenshot does not queue behind a batch of multi-gigabyte videos.
+ * Large files still make progress: the small lane can never occupy every slot, and an upload that has waited
+ * longer than {@code starvationSeconds} is served before anything else.
+ * Every lane has a byte budget of its own, so a video that takes its whole budget never holds back a screenshot.
+ */
+public class UploadLimiter
+{
+	/**
+	 * Upload lanes, in the order they are preferred.
+	 */
+	public enum Lane
+	{
+		SMALL,
+		LARGE,
+		VIDEO
+	}
+	
+	protected record Waiter(Semaphore folderUploads, Lane lane, int priority, long seq, long since, Condition granted)
+	{
+	}
+	
+	protected static final Comparator<Waiter> ORDER = Comparator
+			.comparingInt((Waiter w) -> -w.priority())
+			.thenComparingLong(Waiter::seq);
+	
+	protected final int maxUploads;
+	protected final int[] laneLimits = new int[Lane.values().length];
+	protected final long smallBytes;
+	protected final long starvationNanos;
+	
+	protected final Semaphore[] kilobytes = new Semaphore[Lane.values().length];
+	protected final int maxKilobytes;
+	
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final List<NavigableSet<Waiter>> waiting = new ArrayList<>();
+	protected final Deque<Waiter> arrivals = new ArrayDeque<>();
+	protected final Set<Waiter> grants = new HashSet<>();
+	protected final int[] laneRunning = new int[Lane.values().length];
+	protected int running;
+	protected long seq;
+	
+	public UploadLimiter(int maxConcurrentUploads, int maxInFlightMegabytes)
+	{
+		this(maxConcurrentUploads, maxInFlightMegabytes, 16, 0, 0, 0, 60);
+	}
+	
+	/**
+	 * @param smallMegabytes    files below this size go to the {@link Lane#SMALL} lane, whatever their media type.
+	 * @param smallConcurrency  slots the small lane may use, 0 for all but one.
+	 * @param largeConcurrency  slots the large lane may use, 0 for half of them.
+	 * @param videoConcurrency  slots the video lane may use, 0 for half of them.
+	 * @param starvationSeconds after this long, a waiting upload is served before anything else.
+	 */
+	public UploadLimiter(int maxConcurrentUploads, int maxInFlightMegabytes, int smallMegabytes, int smallConcurrency, int largeConcurrency, int videoConcurrency, int starvationSeconds)
+	{
+		this.maxUploads = Math.max(1, maxConcurrentUploads);
+		this.maxKilobytes = Math.max(1, maxInFlightMegabytes) * 1024;
+		this.smallBytes = Math.max(0, smallMegabytes) * 1024L * 1024L;
+		this.starvationNanos = TimeUnit.SECONDS.toNanos(Math.max(1, starvationSeconds));
+		
+		int half = Math.max(1, maxUploads / 2);
+		laneLimits[Lane.SMALL.ordinal()] = laneLimit(smallConcurrency, Math.max(1, maxUploads - 1));
+		laneLimits[Lane.LARGE.ordinal()] = laneLimit(largeConcurrency, half);
+		laneLimits[Lane.VIDEO.ordinal()] = laneLimit(videoConcurrency, half);
+		
+		for(var lane : Lane.values())
+		{
+			kilobytes[lane.ordinal()] = new Semaphore(maxKilobytes, true);
+			waiting.add(new TreeSet<>(ORDER));
+			MetricsRegistry.DEFAULT.gauge("immich_upload_lane_waiting", "Uploads waiting for a slot, per lane.", () -> waitingIn(lane), "lane", lane.name().toLowerCase(Locale.ROOT));
+			MetricsRegistry.DEFAULT.gauge("immich_upload_lane_running", "Uploads holding a slot, per lane.", () -> runningIn(lane), "lane", lane.name().toLowerCase(Locale.ROOT));
+		}
+	}
+	
+	private int laneLimit(int configured, int fallback)
+	{
+		return Math.min(maxUploads, configured > 0 ? configured : fallback);
+	}
+	
+	public Lane laneOf(long size, boolean video)
+	{
+		if(size < smallBytes) return Lane.SMALL;
+		return video ? Lane.VIDEO : Lane.LARGE;
+	}
+	
+	/**
+	 * Blocks until the folder, global and byte budgets all allow another upload of {@code size} bytes.
+	 * A file larger than the byte budget of its lane takes that entire budget and runs alone in the lane.
+	 */
+	public Permit acquire(Semaphore folderUploads, long size)
+			throws InterruptedException
+	{
+		return acquire(folderUploads, size, laneOf(size, false), 0);
+	}
+	
+	/**
+	 * Like {@link #acquire(Semaphore, long)}, waiting in the given lane with the given folder priority (higher goes first).
+	 */
+	public Permit acquire(Semaphore folderUploads, long size, Lane lane, int priority)
+			throws InterruptedException
+	{
+		int kb = (int) Math.min(maxKilobytes, Math.max(1L, (size + 1023L) / 1024L));
+		
+		acquireSlot(folderUploads, lane, priority);
+		try
+		{
+			kilobytes[lane.ordinal()].acquire(kb);
+		} catch(InterruptedException e)
+		{
+			releaseSlot(folderUploads, lane);
+			throw e;
+		}
+		
+		return new Permit(folderUploads, lane, kb);
+	}
+	
+	/**
+	 * Waits for an upload slot in the lane together with a permit of the folder.
+	 * Folder permits are taken here, under the lock, so the folder limit never holds up the uploads of other folders or lanes.
+	 */
+	protected void acquireSlot(Semaphore folderUploads, Lane lane, int priority)
+			throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			var waiter = new Waiter(folderUploads, lane, priority, seq++, System.nanoTime(), lock.newCondition());
+			waiting.get(lane.ordinal()).add(waiter);
+			arrivals.add(waiter);
+			dispatch();
+			
+			try
+			{
+				while(!grants.remove(waiter))
+					waiter.granted().await();
+			} catch(InterruptedException e)
+			{
+				if(grants.remove(waiter)) releaseSlot(folderUploads, lane);
+				else
+				{
+					waiting.get(lane.ordinal()).remove(waiter);
+					arrivals.remove(waiter);
+				}
+				throw e;
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	protected void releaseSlot(Semaphore folderUploads, Lane lane)
+	{
+		lock.lock();
+		try
+		{
+			folderUploads.release();
+			running--;
+			laneRunning[lane.ordinal()]--;
+			dispatch();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Hands free slots to waiters; must be called with the lock held.
+	 * Starvation only matters while every slot is taken, so it is enough to look for starved waiters whenever a slot frees up.
+	 */
+	protected void dispatch()
+	{
+		while(running < maxUploads)
+		{
+			var next = starved();
+			if(next == null) next = preferred();
+			if(next == null) return;
+			
+			next.folderUploads().acquireUninterruptibly();
+			waiting.get(next.lane().ordinal()).remove(next);
+			arrivals.remove(next);
+			running++;
+			laneRunning[next.lane().ordinal()]++;
+			grants.add(next);
+			next.granted().signal();
+		}
+	}
+	
+	/**
+	 * @return the oldest waiter that has waited for too long and can run now, otherwise null.
+	 */
+	protected Waiter starved()
+	{
+		long now = System.nanoTime();
+		for(var waiter : arrivals)
+		{
+			if(now - waiter.since() < starvationNanos) return null;
+			if(canRun(waiter)) return waiter;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the best waiter that can run in each lane, picking the highest priority among them with earlier lanes winning ties.
+	 */
+	protected Waiter preferred()
+	{
+		Waiter best = null;
+		for(var lane : Lane.values())
+		{
+			if(laneRunning[lane.ordinal()] >= laneLimits[lane.ordinal()]) continue;
+			for(var waiter : waiting.get(lane.ordinal()))
+			{
+				if(best != null && waiter.priority() <= best.priority()) break;
+				if(canRun(waiter))
+				{
+					best = waiter;
+					break;
+				}
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Folder permits are only ever taken under the lock, so their availability cannot change between this check and {@link #dispatch()}.
+	 */
+	protected boolean canRun(Waiter waiter)
+	{
+		return laneRunning[waiter.lane().ordinal()] < laneLimits[waiter.lane().ordinal()] && waiter.folderUploads().availablePermits() > 0;
+	}
+	
+	protected long waitingIn(Lane lane)
+	{
+		lock.lock();
+		try
+		{
+			return waiting.get(lane.ordinal()).size();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	protected long runningIn(Lane lane)
+	{
+		lock.lock();
+		try
+		{
+			return laneRunning[lane.ordinal()];
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	public class Permit
+			implements AutoCloseable
+	{
+		private final Semaphore folderUploads;
+		private final Lane lane;
+		private final int kb;
+		private boolean released;
+		
+		private Permit(Semaphore folderUploads, Lane lane, int kb)
+		{
+			this.folderUploads = folderUploads;
+			this.lane = lane;
+			this.kb = kb;
+		}
+		
+		@Override
+		public void close()
+		{
+			if(released) return;
+			released = true;
+			kilobytes[lane.ordinal()].release(kb);
+			releaseSlot(folderUploads, lane);
+		}
+	}
+}
\ No newline at end of file
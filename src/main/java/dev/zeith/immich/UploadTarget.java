@@ -0,0 +1,10 @@
+package dev.zeith.immich;
+
+import dev.zeith.immich.io.*;
+
+/**
+ * An Immich server files are uploaded to, with the album batcher and upload journal that belong to it.
+ */
+public record UploadTarget(String name, ImmichEngine immich, AlbumBatcher albums, UploadJournal journal)
+{
+}
\ No newline at end of file
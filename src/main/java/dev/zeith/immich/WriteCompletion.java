@@ -0,0 +1,194 @@
+package dev.zeith.immich;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Locale;
+
+/**
+ * Decides whether a file has been written completely and may be uploaded.
+ * <p>
+ * Formats with a recognizable end are checked from a few bytes of the file, never reading it whole:
+ * a PNG must end with its {@code IEND} chunk, a JPEG with its EOI marker, and the top-level boxes of an MP4 or MOV
+ * must add up to exactly the file size and include the {@code moov} box.
+ * A file that passes is released right away, however recently it was modified. A file that fails is held back
+ * until it has been observed unchanged for {@code incompleteMillis}, which still lets through files that
+ * carry trailing data or are slightly broken. Files of other formats fall back to {@code settleMillis} since their last modification.
+ * <p>
+ * Optionally, a file another process holds a lock on is always held back; this catches writers on Windows,
+ * which usually keep their files locked while writing.
+ */
+public class WriteCompletion
+{
+	public enum Verdict
+	{
+		COMPLETE,
+		INCOMPLETE,
+		UNKNOWN
+	}
+	
+	private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final byte[] PNG_TRAILER = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+	private static final byte[] JPEG_SOI = {(byte) 0xFF, (byte) 0xD8};
+	private static final byte[] JPEG_EOI = {(byte) 0xFF, (byte) 0xD9};
+	
+	/**
+	 * Top-level box walks give up after this many boxes, which no regular video comes close to.
+	 */
+	private static final int MAX_BOXES = 4096;
+	
+	protected final long settleMillis;
+	protected final long incompleteMillis;
+	protected final boolean lockProbe;
+	
+	public WriteCompletion(long settleMillis, long incompleteMillis, boolean lockProbe)
+	{
+		this.settleMillis = settleMillis;
+		this.incompleteMillis = Math.max(settleMillis, incompleteMillis);
+		this.lockProbe = lockProbe;
+	}
+	
+	/**
+	 * Checks a file seen once, without any history of earlier observations.
+	 */
+	public boolean isComplete(Path file, long size, long lastModified, long now)
+	{
+		return isComplete(file, size, lastModified, now - lastModified, now);
+	}
+	
+	/**
+	 * @param unchangedMillis for how long the size and modification time have been observed unchanged.
+	 */
+	public boolean isComplete(Path file, long size, long lastModified, long unchangedMillis, long now)
+	{
+		if(lockProbe && isLocked(file)) return false;
+		
+		return switch(verdict(file, size))
+		{
+			case COMPLETE -> true;
+			case INCOMPLETE -> unchangedMillis >= incompleteMillis && now - lastModified > incompleteMillis;
+			case UNKNOWN -> now - lastModified > settleMillis;
+		};
+	}
+	
+	public Verdict verdict(Path file, long size)
+	{
+		var name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		var ext = dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+		
+		try(var channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			return switch(ext)
+			{
+				case "png" -> png(channel, size);
+				case "jpg", "jpeg" -> jpeg(channel, size);
+				case "mp4", "m4v", "mov", "3gp" -> isoMedia(channel, size);
+				default -> Verdict.UNKNOWN;
+			};
+		} catch(IOException e)
+		{
+			// gone again, or (on Windows) opened exclusively by its writer
+			return Verdict.INCOMPLETE;
+		}
+	}
+	
+	static Verdict png(FileChannel channel, long size)
+			throws IOException
+	{
+		if(size < PNG_SIGNATURE.length + PNG_TRAILER.length) return Verdict.INCOMPLETE;
+		if(!matches(read(channel, 0L, PNG_SIGNATURE.length), PNG_SIGNATURE)) return Verdict.UNKNOWN;
+		return matches(read(channel, size - PNG_TRAILER.length, PNG_TRAILER.length), PNG_TRAILER) ? Verdict.COMPLETE : Verdict.INCOMPLETE;
+	}
+	
+	static Verdict jpeg(FileChannel channel, long size)
+			throws IOException
+	{
+		if(size < 4L) return Verdict.INCOMPLETE;
+		if(!matches(read(channel, 0L, 2), JPEG_SOI)) return Verdict.UNKNOWN;
+		return matches(read(channel, size - 2L, 2), JPEG_EOI) ? Verdict.COMPLETE : Verdict.INCOMPLETE;
+	}
+	
+	/**
+	 * Walks the top-level boxes of an ISO base media file (MP4, MOV), reading only their headers.
+	 */
+	static Verdict isoMedia(FileChannel channel, long size)
+			throws IOException
+	{
+		long pos = 0L;
+		boolean moov = false;
+		for(int boxes = 0; pos < size; boxes++)
+		{
+			if(boxes >= MAX_BOXES) return Verdict.UNKNOWN;
+			if(size - pos < 8L) return Verdict.INCOMPLETE;
+			
+			var header = read(channel, pos, (int) Math.min(16L, size - pos));
+			if(header.limit() < 8) return Verdict.INCOMPLETE;
+			long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+			for(int i = 4; i < 8; i++)
+			{
+				int c = header.get(i) & 0xFF;
+				if(c < 0x20 || c > 0x7E) return boxes == 0 ? Verdict.UNKNOWN : Verdict.INCOMPLETE;
+			}
+			var type = new String(new byte[] {header.get(4), header.get(5), header.get(6), header.get(7)}, StandardCharsets.US_ASCII);
+			if(boxes == 0 && !type.equals("ftyp")) return Verdict.UNKNOWN;
+			
+			if(boxSize == 1L)
+			{
+				if(header.limit() < 16) return Verdict.INCOMPLETE;
+				boxSize = header.getLong(8);
+			} else if(boxSize == 0L)
+			{
+				// a box running to the end of the file is how writers leave mdat while they are still recording
+				return Verdict.INCOMPLETE;
+			}
+			if(boxSize < 8L) return Verdict.UNKNOWN;
+			
+			if(type.equals("moov")) moov = true;
+			pos += boxSize;
+		}
+		return pos == size && moov ? Verdict.COMPLETE : Verdict.INCOMPLETE;
+	}
+	
+	/**
+	 * @return true if another process holds a lock on the file.
+	 */
+	static boolean isLocked(Path file)
+	{
+		try(var channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			var lock = channel.tryLock(0L, Long.MAX_VALUE, true);
+			if(lock == null) return true;
+			lock.release();
+			return false;
+		} catch(OverlappingFileLockException e)
+		{
+			// locked by this very process, which is not writing to it
+			return false;
+		} catch(IOException e)
+		{
+			return true;
+		}
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long position, int length)
+			throws IOException
+	{
+		var buf = ByteBuffer.allocate(length);
+		while(buf.hasRemaining())
+			if(channel.read(buf, position + buf.position()) < 0)
+				break;
+		return buf.flip();
+	}
+	
+	private static boolean matches(ByteBuffer buf, byte[] expected)
+	{
+		if(buf.remaining() != expected.length) return false;
+		for(int i = 0; i < expected.length; i++)
+			if(buf.get(i) != expected[i])
+				return false;
+		return true;
+	}
+}
\ No newline at end of file
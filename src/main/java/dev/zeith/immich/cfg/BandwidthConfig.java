@@ -0,0 +1,71 @@
+package dev.zeith.immich.cfg;
+
+import dev.zeith.immich.io.BandwidthLimiter;
+import lombok.With;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.LocalTime;
+import java.util.List;
+
+/**
+ * Upload bandwidth limit, either for all uploads or for the uploads of one folder.
+ * A {@code megabytesPerSecond} of 0 means unlimited, {@code burstMegabytes} is how much may be sent at full speed
+ * after an idle period (one second worth of the rate if 0), and {@code windows} override the rate at certain times of day,
+ * for instance {@code {"from": "01:00", "to": "07:00", "megabytesPerSecond": 0}} to upload unthrottled at night.
+ */
+@With
+public record BandwidthConfig(
+		double megabytesPerSecond,
+		double burstMegabytes,
+		List<Window> windows
+)
+{
+	@With
+	public record Window(
+			String from,
+			String to,
+			double megabytesPerSecond
+	)
+	{
+		public BandwidthLimiter.Window toLimiterWindow()
+		{
+			return new BandwidthLimiter.Window(LocalTime.parse(from), LocalTime.parse(to), bytes(megabytesPerSecond));
+		}
+	}
+	
+	public BandwidthConfig revalidate()
+	{
+		var th = this;
+		if(megabytesPerSecond < 0D) th = th.withMegabytesPerSecond(0D);
+		if(burstMegabytes < 0D) th = th.withBurstMegabytes(0D);
+		if(windows == null) th = th.withWindows(List.of());
+		return th;
+	}
+	
+	/**
+	 * @return the limiter for this configuration, or null if it never limits anything.
+	 */
+	public @Nullable BandwidthLimiter createLimiter()
+	{
+		if(megabytesPerSecond <= 0D && windows.stream().allMatch(w -> w.megabytesPerSecond() <= 0D)) return null;
+		
+		long rate = bytes(megabytesPerSecond);
+		long peak = Math.max(rate, windows.stream().mapToLong(w -> bytes(w.megabytesPerSecond())).max().orElse(0L));
+		long burst = burstMegabytes > 0D ? bytes(burstMegabytes) : peak;
+		return new BandwidthLimiter(rate, burst, windows.stream().map(Window::toLimiterWindow).toList());
+	}
+	
+	private static long bytes(double megabytes)
+	{
+		return (long) (megabytes * 1024D * 1024D);
+	}
+	
+	public static BandwidthConfig createDefault()
+	{
+		return new BandwidthConfig(
+				0D,
+				0D,
+				List.of()
+		);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package dev.zeith.immich.cfg;
+
+import lombok.With;
+
+/**
+ * Opt-in local mirror of the server's asset checksums, see {@link dev.zeith.immich.io.ServerChecksumMirror}.
+ * The mirror picks up new server assets every {@code refreshMinutes} and is rebuilt from scratch every {@code rebuildHours},
+ * which is when assets deleted on the server are forgotten.
+ */
+@With
+public record ChecksumMirrorConfig(
+		Boolean enabled,
+		int refreshMinutes,
+		int rebuildHours,
+		int pageSize
+)
+{
+	public ChecksumMirrorConfig revalidate()
+	{
+		var th = this;
+		if(enabled == null) th = th.withEnabled(false);
+		if(refreshMinutes <= 0) th = th.withRefreshMinutes(15);
+		if(rebuildHours <= 0) th = th.withRebuildHours(24);
+		if(pageSize <= 0) th = th.withPageSize(1000);
+		return th;
+	}
+	
+	public static ChecksumMirrorConfig createDefault()
+	{
+		return new ChecksumMirrorConfig(
+				false,
+				15,
+				24,
+				1000
+		);
+	}
+}
\ No newline at end of file
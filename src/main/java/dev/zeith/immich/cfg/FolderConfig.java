@@ -11,7 +11,21 @@ public record FolderConfig(
 		String albumId,
 		int maxDepth,
 		List<String> filePatterns,
-		Map<String, String> timeRemappers
+		Map<String, String> timeRemappers,
+		Boolean watchEvents,
+		int fullRescanSeconds,
+		int maxConcurrentUploads,
+		Integer singlePassMinMegabytes,
+		int minScanSeconds,
+		int maxScanSeconds,
+		BandwidthConfig bandwidth,
+		int priority,
+		int settleSeconds,
+		int incompleteHoldSeconds,
+		Boolean lockProbe,
+		List<FolderTargetConfig> targets,
+		Boolean recompressPng,
+		int recompressMinGainPercent
 )
 {
 	public FolderConfig revalidate()
@@ -22,6 +36,40 @@ public record FolderConfig(
 		if(albumId == null) th = th.withAlbumId("");
 		if(filePatterns == null || filePatterns.isEmpty()) th = th.withFilePatterns(List.of("^VRChat_.+\\.png$"));
 		if(timeRemappers == null) th = th.withTimeRemappers(createVRChat().timeRemappers());
+		if(watchEvents == null) th = th.withWatchEvents(true);
+		if(fullRescanSeconds <= 0) th = th.withFullRescanSeconds(600);
+		if(maxConcurrentUploads <= 0) th = th.withMaxConcurrentUploads(2);
+		if(singlePassMinMegabytes == null || singlePassMinMegabytes < 0) th = th.withSinglePassMinMegabytes(8);
+		if(th.minScanSeconds <= 0) th = th.withMinScanSeconds(10);
+		if(th.maxScanSeconds < th.minScanSeconds) th = th.withMaxScanSeconds(Math.max(300, th.minScanSeconds));
+		if(th.settleSeconds <= 0) th = th.withSettleSeconds(5);
+		if(th.incompleteHoldSeconds <= 0) th = th.withIncompleteHoldSeconds(60);
+		if(th.lockProbe == null) th = th.withLockProbe(false);
+		if(th.recompressPng == null) th = th.withRecompressPng(false);
+		if(th.recompressMinGainPercent <= 0) th = th.withRecompressMinGainPercent(5);
+		if(th.targets == null) th = th.withTargets(List.of());
+		else
+		{
+			var ch = false;
+			List<FolderTargetConfig> targets = new ArrayList<>(th.targets);
+			for(int i = 0; i < targets.size(); i++)
+			{
+				var target = targets.get(i);
+				var t2 = target.revalidate();
+				if(target != t2)
+				{
+					targets.set(i, t2);
+					ch = true;
+				}
+			}
+			if(ch) th = th.withTargets(List.copyOf(targets));
+		}
+		if(th.bandwidth == null) th = th.withBandwidth(BandwidthConfig.createDefault());
+		else
+		{
+			var b2 = th.bandwidth.revalidate();
+			if(b2 != th.bandwidth) th = th.withBandwidth(b2);
+		}
 		return th;
 	}
 	
@@ -38,7 +86,21 @@ public record FolderConfig(
 				List.of(
 						("^VRChat_.+\\.png$")
 				),
-				Collections.unmodifiableMap(timeRemappers)
+				Collections.unmodifiableMap(timeRemappers),
+				true,
+				600,
+				2,
+				8,
+				10,
+				300,
+				BandwidthConfig.createDefault(),
+				0,
+				5,
+				60,
+				false,
+				List.of(),
+				false,
+				5
 		);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,22 @@
+package dev.zeith.immich.cfg;
+
+import lombok.With;
+
+/**
+ * One of the servers a folder uploads to, by its {@link TargetConfig#name()}, with the album its files go into there
+ * (album ids differ from server to server).
+ */
+@With
+public record FolderTargetConfig(
+		String target,
+		String albumId
+)
+{
+	public FolderTargetConfig revalidate()
+	{
+		var th = this;
+		if(target == null) th = th.withTarget(TargetConfig.DEFAULT);
+		if(albumId == null) th = th.withAlbumId("");
+		return th;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,48 @@
+package dev.zeith.immich.cfg;
+
+import lombok.With;
+
+import java.net.http.HttpClient;
+import java.util.Arrays;
+
+/**
+ * Settings of the HTTP client that talks to Immich.
+ * {@code version} is the preferred protocol ({@code HTTP_2} falls back to HTTP/1.1 when the server does not speak it),
+ * an {@code uploadTimeoutSeconds} of 0 lets uploads take as long as they need,
+ * and {@code keepAliveSeconds} is how long idle connections stay pooled between uploads.
+ */
+@With
+public record HttpConfig(
+		String version,
+		int connectTimeoutSeconds,
+		int requestTimeoutSeconds,
+		int uploadTimeoutSeconds,
+		int threads,
+		int keepAliveSeconds
+)
+{
+	public HttpConfig revalidate()
+	{
+		var th = this;
+		if(version == null || Arrays.stream(HttpClient.Version.values()).noneMatch(v -> v.name().equals(version)))
+			th = th.withVersion(HttpClient.Version.HTTP_2.name());
+		if(connectTimeoutSeconds <= 0) th = th.withConnectTimeoutSeconds(10);
+		if(requestTimeoutSeconds <= 0) th = th.withRequestTimeoutSeconds(60);
+		if(uploadTimeoutSeconds < 0) th = th.withUploadTimeoutSeconds(0);
+		if(threads <= 0) th = th.withThreads(4);
+		if(keepAliveSeconds <= 0) th = th.withKeepAliveSeconds(300);
+		return th;
+	}
+	
+	public static HttpConfig createDefault()
+	{
+		return new HttpConfig(
+				HttpClient.Version.HTTP_2.name(),
+				10,
+				60,
+				0,
+				4,
+				300
+		);
+	}
+}
\ No newline at end of file
@@ -1,5 +1,6 @@
 package dev.zeith.immich.cfg;
 
+import dev.zeith.immich.log.Level;
 import lombok.With;
 
 import java.util.*;
@@ -8,13 +9,86 @@ import java.util.*;
 public record MainConfig(
 		String immichUrl,
 		String apiKey,
-		List<FolderConfig> folders
+		List<FolderConfig> folders,
+		int maxConcurrentUploads,
+		int maxInFlightMegabytes,
+		int bulkCheckBatchSize,
+		int albumBatchSize,
+		int albumFlushSeconds,
+		int hashThreads,
+		int metricsPort,
+		Boolean jmxMetrics,
+		HttpConfig http,
+		int maxConcurrentScans,
+		BandwidthConfig bandwidth,
+		ChecksumMirrorConfig checksumMirror,
+		UploadLanesConfig uploadLanes,
+		int mediaTypesTtlMinutes,
+		String logLevel,
+		Boolean logSummary,
+		List<TargetConfig> targets,
+		int recompressThreads
 )
 {
 	public MainConfig revalidate()
 	{
 		var th = this;
 		
+		if(maxConcurrentUploads <= 0) th = th.withMaxConcurrentUploads(4);
+		if(maxInFlightMegabytes <= 0) th = th.withMaxInFlightMegabytes(256);
+		if(bulkCheckBatchSize <= 0) th = th.withBulkCheckBatchSize(500);
+		if(albumBatchSize <= 0) th = th.withAlbumBatchSize(250);
+		if(albumFlushSeconds <= 0) th = th.withAlbumFlushSeconds(10);
+		if(hashThreads <= 0) th = th.withHashThreads(2);
+		if(recompressThreads <= 0) th = th.withRecompressThreads(1);
+		if(metricsPort < 0) th = th.withMetricsPort(0);
+		if(jmxMetrics == null) th = th.withJmxMetrics(true);
+		if(mediaTypesTtlMinutes <= 0) th = th.withMediaTypesTtlMinutes(1440);
+		if(maxConcurrentScans <= 0) th = th.withMaxConcurrentScans(2);
+		if(Level.parse(logLevel) == null) th = th.withLogLevel(Level.INFO.name());
+		if(logSummary == null) th = th.withLogSummary(false);
+		if(bandwidth == null) th = th.withBandwidth(BandwidthConfig.createDefault());
+		else
+		{
+			var b2 = bandwidth.revalidate();
+			if(b2 != bandwidth) th = th.withBandwidth(b2);
+		}
+		if(uploadLanes == null) th = th.withUploadLanes(UploadLanesConfig.createDefault());
+		else
+		{
+			var l2 = uploadLanes.revalidate();
+			if(l2 != uploadLanes) th = th.withUploadLanes(l2);
+		}
+		if(checksumMirror == null) th = th.withChecksumMirror(ChecksumMirrorConfig.createDefault());
+		else
+		{
+			var m2 = checksumMirror.revalidate();
+			if(m2 != checksumMirror) th = th.withChecksumMirror(m2);
+		}
+		if(targets == null) th = th.withTargets(List.of());
+		else
+		{
+			var ch = false;
+			List<TargetConfig> targets = new ArrayList<>(targets());
+			for(int i = 0; i < targets.size(); i++)
+			{
+				var target = targets.get(i);
+				var t2 = target.revalidate();
+				if(target != t2)
+				{
+					targets.set(i, t2);
+					ch = true;
+				}
+			}
+			if(ch) th = th.withTargets(List.copyOf(targets));
+		}
+		if(http == null) th = th.withHttp(HttpConfig.createDefault());
+		else
+		{
+			var h2 = http.revalidate();
+			if(h2 != http) th = th.withHttp(h2);
+		}
+		
 		{
 			var ch = false;
 			List<FolderConfig> folders = new ArrayList<>(folders());
@@ -34,12 +108,41 @@ public record MainConfig(
 		return th;
 	}
 	
+	/**
+	 * @return every server to upload to: {@code immichUrl} and {@code apiKey} as the {@value TargetConfig#DEFAULT} target, then {@link #targets()}.
+	 */
+	public List<TargetConfig> uploadTargets()
+	{
+		List<TargetConfig> all = new ArrayList<>();
+		all.add(new TargetConfig(TargetConfig.DEFAULT, immichUrl, apiKey));
+		all.addAll(targets);
+		return all;
+	}
+	
 	public static MainConfig createDefault()
 	{
 		return new MainConfig(
 				"https://immich.yourdomain.com",
 				Integer.toString(0).repeat(43),
-				List.of(FolderConfig.createVRChat())
+				List.of(FolderConfig.createVRChat()),
+				4,
+				256,
+				500,
+				250,
+				10,
+				2,
+				0,
+				true,
+				HttpConfig.createDefault(),
+				2,
+				BandwidthConfig.createDefault(),
+				ChecksumMirrorConfig.createDefault(),
+				UploadLanesConfig.createDefault(),
+				1440,
+				Level.INFO.name(),
+				false,
+				List.of(),
+				1
 		);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+package dev.zeith.immich.cfg;
+
+import lombok.With;
+
+import java.net.URI;
+
+/**
+ * An additional Immich server to upload to. Folders refer to it by {@code name}, see {@link FolderTargetConfig};
+ * the server given by {@code immichUrl} and {@code apiKey} in {@link MainConfig} is always there as {@value #DEFAULT}.
+ */
+@With
+public record TargetConfig(
+		String name,
+		String immichUrl,
+		String apiKey
+)
+{
+	public static final String DEFAULT = "default";
+	
+	public TargetConfig revalidate()
+	{
+		var th = this;
+		if(immichUrl == null) th = th.withImmichUrl("");
+		if(apiKey == null) th = th.withApiKey("");
+		if(name == null || name.isBlank()) th = th.withName(hostOf(th.immichUrl));
+		return th;
+	}
+	
+	private static String hostOf(String url)
+	{
+		try
+		{
+			var host = URI.create(url).getHost();
+			return host != null ? host : url;
+		} catch(IllegalArgumentException e)
+		{
+			return url;
+		}
+	}
+}
\ No newline at end of file
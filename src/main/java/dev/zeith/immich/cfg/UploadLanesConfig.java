@@ -0,0 +1,41 @@
+package dev.zeith.immich.cfg;
+
+import lombok.With;
+
+/**
+ * Priority lanes of the upload stage, see {@link dev.zeith.immich.UploadLimiter}.
+ * Files below {@code smallMegabytes} share the small lane, larger ones go to the large or video lane by their media type.
+ * A concurrency of 0 picks the default share of {@link MainConfig#maxConcurrentUploads()}: all but one slot for small files,
+ * half of them for large files and videos each.
+ */
+@With
+public record UploadLanesConfig(
+		int smallMegabytes,
+		int smallConcurrency,
+		int largeConcurrency,
+		int videoConcurrency,
+		int starvationSeconds
+)
+{
+	public UploadLanesConfig revalidate()
+	{
+		var th = this;
+		if(smallMegabytes <= 0) th = th.withSmallMegabytes(16);
+		if(smallConcurrency < 0) th = th.withSmallConcurrency(0);
+		if(largeConcurrency < 0) th = th.withLargeConcurrency(0);
+		if(videoConcurrency < 0) th = th.withVideoConcurrency(0);
+		if(starvationSeconds <= 0) th = th.withStarvationSeconds(60);
+		return th;
+	}
+	
+	public static UploadLanesConfig createDefault()
+	{
+		return new UploadLanesConfig(
+				16,
+				0,
+				0,
+				0,
+				60
+		);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,184 @@
+package dev.zeith.immich.io;
+
+import com.google.gson.*;
+import dev.zeith.immich.log.Log;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects album additions per album ID and sends them in as few {@code albums/{id}/assets} calls as possible.
+ * <p>
+ * Pending assets are flushed when an album reaches {@code batchSize} entries, every flush interval,
+ * or when {@link #flush()} is called explicitly (end of a batch, shutdown).
+ * Asset IDs the server has confirmed as members are remembered (the latest {@link #MAX_MEMBERS} per album) and not sent again.
+ * An optional callback per asset runs once the server has confirmed it, so callers can record the assignment durably.
+ * A call that fails as a whole puts its assets back into the pending set, so the next flush tries them again.
+ */
+public class AlbumBatcher
+		implements AutoCloseable
+{
+	private static final Log LOG = Log.of("AlbumBatcher");
+	
+	protected final ImmichEngine immich;
+	protected final int batchSize;
+	
+	protected final Map<String, Map<String, Runnable>> pending = new HashMap<>();
+	protected final Map<String, Set<String>> members = new ConcurrentHashMap<>();
+	
+	/**
+	 * How many confirmed members are remembered per album; forgetting one only costs a request the server answers as a duplicate.
+	 */
+	protected static final int MAX_MEMBERS = 16384;
+	
+	protected final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+	
+	protected final ScheduledExecutorService timer;
+	
+	private static final Runnable NOOP = () ->
+	{
+	};
+	
+	public AlbumBatcher(ImmichEngine immich, int batchSize, int flushSeconds)
+	{
+		this.immich = immich;
+		this.batchSize = Math.max(1, batchSize);
+		this.timer = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			var t = new Thread(r, "AlbumBatcher");
+			t.setDaemon(true);
+			return t;
+		});
+		int period = Math.max(1, flushSeconds);
+		timer.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.SECONDS);
+	}
+	
+	public void add(String album, String assetId)
+	{
+		add(album, assetId, null);
+	}
+	
+	public void add(String album, String assetId, @Nullable Runnable onAssigned)
+	{
+		if(album == null || album.isBlank() || assetId == null) return;
+		if(isMember(album, assetId))
+		{
+			if(onAssigned != null) onAssigned.run();
+			return;
+		}
+		
+		Map<String, Runnable> full = null;
+		synchronized(pending)
+		{
+			var ids = pending.computeIfAbsent(album, k -> new LinkedHashMap<>());
+			ids.merge(assetId, onAssigned != null ? onAssigned : NOOP, AlbumBatcher::andThen);
+			if(ids.size() >= batchSize)
+				full = pending.remove(album);
+		}
+		
+		if(full != null) send(album, full);
+	}
+	
+	/**
+	 * Puts the assets of a failed call back, to go out with the next flush.
+	 */
+	protected void requeue(String album, Map<String, Runnable> ids)
+	{
+		synchronized(pending)
+		{
+			var queued = pending.computeIfAbsent(album, k -> new LinkedHashMap<>());
+			ids.forEach((id, onAssigned) -> queued.merge(id, onAssigned, AlbumBatcher::andThen));
+		}
+	}
+	
+	public boolean isMember(String album, String assetId)
+	{
+		var known = members.get(album);
+		return known != null && known.contains(assetId);
+	}
+	
+	public void flush()
+	{
+		Map<String, Map<String, Runnable>> drained;
+		synchronized(pending)
+		{
+			if(pending.isEmpty()) return;
+			drained = new HashMap<>(pending);
+			pending.clear();
+		}
+		
+		drained.forEach(this::send);
+	}
+	
+	/**
+	 * Sends the assets without waiting for the response; {@link #close()} waits for everything still in flight.
+	 */
+	protected void send(String album, Map<String, Runnable> ids)
+	{
+		var sending = immich
+				.addAssetsToAlbumAsync(album, ids.keySet())
+				.thenAccept(response -> accept(album, ids, response))
+				.exceptionally(e ->
+				{
+					LOG.error("Failed to add {} assets to album {}, trying them again with the next flush.", ids.size(), album, e instanceof CompletionException ? e.getCause() : e);
+					requeue(album, ids);
+					return null;
+				});
+		inFlight.add(sending);
+		sending.whenComplete((v, e) -> inFlight.remove(sending));
+	}
+	
+	protected void accept(String album, Map<String, Runnable> ids, JsonElement response)
+	{
+		var known = members.computeIfAbsent(album, k -> Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<>()
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+			{
+				return size() > MAX_MEMBERS;
+			}
+		})));
+		
+		int added = 0;
+		if(response != null && response.isJsonArray())
+		{
+			for(JsonElement e : response.getAsJsonArray())
+			{
+				if(!e.isJsonObject()) continue;
+				var o = e.getAsJsonObject();
+				if(!o.has("id")) continue;
+				
+				var success = o.has("success") && o.get("success").getAsBoolean();
+				var duplicate = o.has("error") && "duplicate".equalsIgnoreCase(o.get("error").getAsString());
+				if(success || duplicate)
+				{
+					var id = o.get("id").getAsString();
+					known.add(id);
+					ids.getOrDefault(id, NOOP).run();
+					added++;
+				} else
+					LOG.warn("Failed to add asset {} to album {}: {}", o.get("id").getAsString(), album, o.get("error"));
+			}
+		}
+		
+		LOG.info("Added {} of {} assets to album {}", added, ids.size(), album);
+	}
+	
+	private static Runnable andThen(Runnable a, Runnable b)
+	{
+		return a == NOOP ? b : b == NOOP ? a : () ->
+		{
+			a.run();
+			b.run();
+		};
+	}
+	
+	@Override
+	public void close()
+	{
+		timer.shutdownNow();
+		flush();
+		CompletableFuture.allOf(inFlight.toArray(CompletableFuture[]::new)).join();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+package dev.zeith.immich.io;
+
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Token bucket that shapes upload bandwidth.
+ * <p>
+ * The bucket refills at the rate that applies at the current time of day and holds at most {@code burstBytes}.
+ * Senders reserve bytes before they write them and may run the bucket into debt; the returned delay is how long
+ * they have to wait until the debt is paid off, which spreads the writes evenly instead of stalling whole files.
+ * A rate of 0 means unlimited.
+ */
+public class BandwidthLimiter
+{
+	/**
+	 * Resumes paused senders; the actual work is handed off to virtual threads, so one thread serves every upload.
+	 */
+	static final ScheduledExecutorService RESUME = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("BandwidthShaper").daemon().factory());
+	
+	/**
+	 * A time-of-day window with its own rate; {@code from} after {@code to} wraps around midnight.
+	 */
+	public record Window(LocalTime from, LocalTime to, long bytesPerSecond)
+	{
+		public boolean contains(LocalTime time)
+		{
+			return from.isBefore(to)
+				   ? !time.isBefore(from) && time.isBefore(to)
+				   : !time.isBefore(from) || time.isBefore(to);
+		}
+	}
+	
+	private final long bytesPerSecond;
+	private final long burstBytes;
+	private final List<Window> windows;
+	
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+	
+	public BandwidthLimiter(long bytesPerSecond, long burstBytes, List<Window> windows)
+	{
+		this.bytesPerSecond = Math.max(0L, bytesPerSecond);
+		this.burstBytes = Math.max(HTTPRequestMultipartBody.CHUNK_SIZE, burstBytes);
+		this.windows = List.copyOf(windows);
+		this.tokens = this.burstBytes;
+	}
+	
+	/**
+	 * @return the rate in bytes per second at the given time of day, 0 if unlimited.
+	 */
+	public long rateAt(LocalTime time)
+	{
+		for(var window : windows)
+			if(window.contains(time))
+				return window.bytesPerSecond();
+		return bytesPerSecond;
+	}
+	
+	/**
+	 * Takes {@code bytes} out of the bucket.
+	 *
+	 * @return nanoseconds the caller has to wait before sending them, 0 if it may send right away.
+	 */
+	public synchronized long reserve(long bytes)
+	{
+		long now = System.nanoTime();
+		long rate = windows.isEmpty() ? bytesPerSecond : rateAt(LocalTime.now());
+		if(rate <= 0L)
+		{
+			tokens = burstBytes;
+			lastRefill = now;
+			return 0L;
+		}
+		
+		tokens = Math.min(burstBytes, tokens + (now - lastRefill) * rate / 1e9D);
+		lastRefill = now;
+		tokens -= bytes;
+		return tokens >= 0D ? 0L : (long) (-tokens * 1e9D / rate);
+	}
+	
+	/**
+	 * Reserves the bytes from every given limiter.
+	 *
+	 * @return the longest of the delays.
+	 */
+	public static long reserve(long bytes, List<BandwidthLimiter> limiters)
+	{
+		long wait = 0L;
+		for(var limiter : limiters)
+			wait = Math.max(wait, limiter.reserve(bytes));
+		return wait;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,371 @@
+package dev.zeith.immich.io;
+
+import dev.zeith.immich.log.Log;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent map of (path, size, lastModified, fileKey) to checksum, stored as an append-only log.
+ * <p>
+ * Every record is framed as {@code [int length][payload][int crc32]}; a record that fails to frame or
+ * verify on load marks the start of a corrupt tail, which is cut off so the log stays appendable.
+ * Superseded and removed records are counted as garbage and dropped by {@link #compact()}.
+ * Entries of files that were deleted or changed behind our back are evicted on load and then every {@link #EVICT_INTERVAL}.
+ */
+public class ChecksumIndex
+		implements Closeable
+{
+	private static final Log LOG = Log.of("ChecksumIndex");
+	
+	private static final int MAGIC = 0x49434B31;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final int MAX_RECORD = 64 * 1024;
+	
+	protected static final Duration EVICT_INTERVAL = Duration.ofHours(1L);
+	
+	private final Path file;
+	private final Hashers hasher;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	
+	private DataOutputStream log;
+	private int garbage;
+	private long nextEviction;
+	
+	public record Entry(long size, long lastModified, String fileKey, String checksum)
+	{
+		public boolean matches(BasicFileAttributes attrs)
+		{
+			return size == attrs.size()
+				   && lastModified == attrs.lastModifiedTime().toMillis()
+				   && fileKey.equals(fileKeyOf(attrs));
+		}
+	}
+	
+	private ChecksumIndex(Path file, Hashers hasher)
+	{
+		this.file = file;
+		this.hasher = hasher;
+	}
+	
+	public static ChecksumIndex open(Path file, Hashers hasher)
+			throws IOException
+	{
+		var index = new ChecksumIndex(file.toAbsolutePath(), hasher);
+		index.load();
+		return index;
+	}
+	
+	static String fileKeyOf(BasicFileAttributes attrs)
+	{
+		return Objects.toString(attrs.fileKey(), "");
+	}
+	
+	/**
+	 * Returns the checksum of the given file, hashing it only if the index has no entry matching its current attributes.
+	 */
+	public String checksum(File target)
+	{
+		var path = target.toPath().toAbsolutePath();
+		
+		BasicFileAttributes before;
+		try
+		{
+			before = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch(IOException e)
+		{
+			return hasher.genHash(target);
+		}
+		
+		var key = path.toString();
+		var known = entries.get(key);
+		if(known != null && known.matches(before))
+			return known.checksum();
+		
+		var hash = hasher.genHash(target);
+		remember(target, before, hash);
+		return hash;
+	}
+	
+	/**
+	 * @return the indexed checksum if the file still matches its entry, without ever reading the file.
+	 */
+	public @Nullable String lookup(File target)
+	{
+		var path = target.toPath().toAbsolutePath();
+		var known = entries.get(path.toString());
+		if(known == null) return null;
+		try
+		{
+			return known.matches(Files.readAttributes(path, BasicFileAttributes.class)) ? known.checksum() : null;
+		} catch(IOException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Records a checksum that was computed elsewhere (for instance while uploading),
+	 * provided the file still has the attributes it had before it was read.
+	 */
+	public void remember(File target, BasicFileAttributes before, String hash)
+	{
+		var path = target.toPath().toAbsolutePath();
+		try
+		{
+			var after = Files.readAttributes(path, BasicFileAttributes.class);
+			// only remember the hash if the file stayed put while we were reading it
+			if(after.size() == before.size() && after.lastModifiedTime().equals(before.lastModifiedTime()))
+				put(path.toString(), new Entry(after.size(), after.lastModifiedTime().toMillis(), fileKeyOf(after), hash));
+		} catch(IOException ignored)
+		{
+		}
+	}
+	
+	public Optional<Entry> get(File target)
+	{
+		return Optional.ofNullable(entries.get(target.toPath().toAbsolutePath().toString()));
+	}
+	
+	public void forget(File target)
+	{
+		var key = target.toPath().toAbsolutePath().toString();
+		if(entries.remove(key) == null) return;
+		synchronized(this)
+		{
+			garbage++;
+			append(REMOVE, key, null);
+		}
+	}
+	
+	public int size()
+	{
+		return entries.size();
+	}
+	
+	private void put(String key, Entry entry)
+	{
+		synchronized(this)
+		{
+			if(entries.put(key, entry) != null) garbage++;
+			append(PUT, key, entry);
+		}
+	}
+	
+	/**
+	 * Pushes buffered records to disk, evicts stale entries once every {@link #EVICT_INTERVAL}
+	 * and compacts the log once it holds more garbage than live entries.
+	 */
+	public synchronized void flush()
+	{
+		try
+		{
+			long now = System.currentTimeMillis();
+			if(now >= nextEviction)
+			{
+				evictStale();
+				nextEviction = now + EVICT_INTERVAL.toMillis();
+			}
+			
+			if(garbage > Math.max(1024, entries.size()))
+				compact();
+			else if(log != null)
+				log.flush();
+		} catch(IOException e)
+		{
+			LOG.error("Failed to flush checksum index {}", file, e);
+		}
+	}
+	
+	/**
+	 * Drops entries whose files no longer exist or no longer match the recorded attributes.
+	 */
+	public synchronized int evictStale()
+	{
+		int evicted = 0;
+		for(var it = entries.entrySet().iterator(); it.hasNext(); )
+		{
+			var e = it.next();
+			try
+			{
+				var attrs = Files.readAttributes(Path.of(e.getKey()), BasicFileAttributes.class);
+				if(e.getValue().matches(attrs)) continue;
+			} catch(IOException | InvalidPathException ignored)
+			{
+			}
+			it.remove();
+			evicted++;
+		}
+		garbage += evicted;
+		return evicted;
+	}
+	
+	public synchronized void compact()
+			throws IOException
+	{
+		if(log != null) log.close();
+		
+		var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try(var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))
+		{
+			out.writeInt(MAGIC);
+			for(var e : entries.entrySet())
+				writeRecord(out, PUT, e.getKey(), e.getValue());
+		}
+		// the rename must not reach the disk before the data does, or a crash could leave an empty index behind
+		try(var ch = FileChannel.open(tmp, StandardOpenOption.WRITE))
+		{
+			ch.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		garbage = 0;
+		log = openAppend();
+	}
+	
+	@Override
+	public synchronized void close()
+			throws IOException
+	{
+		if(log != null)
+		{
+			log.close();
+			log = null;
+		}
+	}
+	
+	private void append(byte type, String key, Entry entry)
+	{
+		try
+		{
+			if(log == null) log = openAppend();
+			writeRecord(log, type, key, entry);
+		} catch(IOException e)
+		{
+			LOG.error("Failed to append to checksum index {}", file, e);
+		}
+	}
+	
+	private DataOutputStream openAppend()
+			throws IOException
+	{
+		return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+	}
+	
+	private static void writeRecord(DataOutputStream out, byte type, String key, Entry entry)
+			throws IOException
+	{
+		var bytes = new ByteArrayOutputStream(128);
+		var payload = new DataOutputStream(bytes);
+		payload.writeByte(type);
+		payload.writeUTF(key);
+		if(type == PUT)
+		{
+			payload.writeLong(entry.size());
+			payload.writeLong(entry.lastModified());
+			payload.writeUTF(entry.fileKey());
+			payload.writeUTF(entry.checksum());
+		}
+		
+		var crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+		out.writeInt((int) crc.getValue());
+	}
+	
+	private void load()
+			throws IOException
+	{
+		if(!Files.isRegularFile(file))
+		{
+			compact();
+			return;
+		}
+		
+		long valid = 0L;
+		int records = 0;
+		try(var ch = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+			long length = ch.size();
+			
+			if(length >= 4 && in.readInt() == MAGIC)
+			{
+				valid = 4L;
+				while(valid + 8 <= length)
+				{
+					int len = in.readInt();
+					if(len <= 0 || len > MAX_RECORD || valid + 8 + len > length) break;
+					
+					byte[] payload = in.readNBytes(len);
+					int expected = in.readInt();
+					var crc = new CRC32();
+					crc.update(payload);
+					if((int) crc.getValue() != expected) break;
+					
+					if(!apply(payload)) break;
+					valid += 8 + len;
+					records++;
+				}
+			}
+			
+			if(valid < length)
+				LOG.warn("Checksum index {} is corrupt after byte {}, discarding {} trailing bytes.", file, valid, length - valid);
+		}
+		
+		garbage = records - entries.size();
+		int evicted = evictStale();
+		nextEviction = System.currentTimeMillis() + EVICT_INTERVAL.toMillis();
+		
+		if(valid < 4L || evicted > 0 || garbage > entries.size())
+			compact();
+		else
+		{
+			if(valid < Files.size(file))
+				try(var ch = FileChannel.open(file, StandardOpenOption.WRITE))
+				{
+					ch.truncate(valid);
+				}
+			log = openAppend();
+		}
+	}
+	
+	private boolean apply(byte[] payload)
+	{
+		try
+		{
+			var in = new DataInputStream(new ByteArrayInputStream(payload));
+			byte type = in.readByte();
+			String key = in.readUTF();
+			switch(type)
+			{
+				case PUT ->
+				{
+					var entry = new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+					// hashes written by an older, differently padded hex encoder are not trusted
+					if(entry.checksum().length() == hasher.getHexLength()) entries.put(key, entry);
+					else entries.remove(key);
+				}
+				case REMOVE -> entries.remove(key);
+				default ->
+				{
+					return false;
+				}
+			}
+			return in.available() == 0;
+		} catch(IOException e)
+		{
+			return false;
+		}
+	}
+}
\ No newline at end of file
@@ -1,26 +1,55 @@
 package dev.zeith.immich.io;
 
 import lombok.*;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.*;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
+/**
+ * Multipart body that is published straight from disk.
+ * Headers, boundaries and in-memory parts are assembled eagerly, while file parts are only referenced
+ * and read through a {@link FileChannel} in {@link #CHUNK_SIZE} slices when the request is sent.
+ * With {@link BandwidthLimiter}s attached, every slice is paced through them before it is handed to the socket.
+ */
 @Getter
 public class HTTPRequestMultipartBody
+		implements HttpRequest.BodyPublisher
 {
-	private final byte[] body;
+	public static final int CHUNK_SIZE = 64 * 1024;
 	
-	@Setter
-	private String boundary;
+	private final List<Segment> segments;
 	
-	private HTTPRequestMultipartBody(byte[] body, String boundary)
+	private final long contentLength;
+	
+	private final String boundary;
+	
+	private final Hashers fileDigest;
+	
+	private final List<BandwidthLimiter> throttles;
+	
+	/**
+	 * Hex digest of all file parts, computed from the very buffers that were sent.
+	 * Only set once a subscription has published the whole body.
+	 */
+	private volatile String sentChecksum;
+	
+	private HTTPRequestMultipartBody(List<Segment> segments, String boundary, Hashers fileDigest, List<BandwidthLimiter> throttles)
 	{
-		this.body = body;
+		this.segments = List.copyOf(segments);
 		this.boundary = boundary;
+		this.fileDigest = fileDigest;
+		this.throttles = List.copyOf(throttles);
+		this.contentLength = this.segments.stream().mapToLong(Segment::length).sum();
 	}
 	
 	public String getContentType()
@@ -28,6 +57,231 @@ public class HTTPRequestMultipartBody
 		return "multipart/form-data; boundary=" + this.getBoundary();
 	}
 	
+	@Override
+	public long contentLength()
+	{
+		return contentLength;
+	}
+	
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber)
+	{
+		var subscription = new SegmentSubscription(this, subscriber, segments.iterator());
+		subscriber.onSubscribe(subscription);
+	}
+	
+	public sealed interface Segment
+	{
+		long length();
+	}
+	
+	public record BytesSegment(byte[] data)
+			implements Segment
+	{
+		@Override
+		public long length()
+		{
+			return data.length;
+		}
+	}
+	
+	public record FileSegment(Path path, long length)
+			implements Segment
+	{
+	}
+	
+	/**
+	 * Emits one buffer per unit of demand, never holding more than a single chunk of file data at a time.
+	 * Reentrant {@link #request(long)} calls from inside {@code onNext} are folded into the running drain loop.
+	 * A buffer the throttles say must wait is parked, and the drain loop is resumed once its delay has passed,
+	 * so no thread of the HTTP client is ever blocked for pacing.
+	 */
+	private static class SegmentSubscription
+			implements Flow.Subscription
+	{
+		private final HTTPRequestMultipartBody body;
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+		private final Iterator<Segment> segments;
+		private final Hashers.Digestion digestion;
+		
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+		private volatile boolean done;
+		
+		private ByteBuffer parked;
+		private long parkedUntil;
+		
+		private FileChannel channel;
+		private Path channelPath;
+		private long remaining;
+		
+		SegmentSubscription(HTTPRequestMultipartBody body, Flow.Subscriber<? super ByteBuffer> subscriber, Iterator<Segment> segments)
+		{
+			this.body = body;
+			this.subscriber = subscriber;
+			this.segments = segments;
+			this.digestion = body.fileDigest != null ? body.fileDigest.digestion().start() : null;
+		}
+		
+		@Override
+		public void request(long n)
+		{
+			if(done) return;
+			if(n <= 0)
+			{
+				done = true;
+				closeChannel();
+				subscriber.onError(new IllegalArgumentException("non-positive subscription request: " + n));
+				return;
+			}
+			demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+			drain();
+		}
+		
+		@Override
+		public void cancel()
+		{
+			done = true;
+			if(wip.getAndIncrement() == 0) closeChannel();
+		}
+		
+		private void drain()
+		{
+			if(wip.getAndIncrement() != 0) return;
+			
+			int missed = 1;
+			do
+			{
+				while(!done && demand.get() > 0L)
+				{
+					ByteBuffer next = parked;
+					if(next == null)
+					{
+						try
+						{
+							next = nextBuffer();
+						} catch(IOException e)
+						{
+							done = true;
+							closeChannel();
+							subscriber.onError(e);
+							return;
+						}
+						
+						if(next == null)
+						{
+							done = true;
+							if(digestion != null) body.sentChecksum = digestion.digestHex();
+							subscriber.onComplete();
+							return;
+						}
+						
+						if(!body.throttles.isEmpty())
+						{
+							long wait = BandwidthLimiter.reserve(next.remaining(), body.throttles);
+							if(wait > 0L)
+							{
+								parked = next;
+								parkedUntil = System.nanoTime() + wait;
+							}
+						}
+					}
+					
+					if(parked != null)
+					{
+						long wait = parkedUntil - System.nanoTime();
+						if(wait > 0L)
+						{
+							resumeAfter(wait);
+							break;
+						}
+						parked = null;
+					}
+					
+					demand.decrementAndGet();
+					subscriber.onNext(next);
+				}
+				
+				if(done) closeChannel();
+				missed = wip.addAndGet(-missed);
+			} while(missed != 0);
+		}
+		
+		private void resumeAfter(long nanos)
+		{
+			if(!resumeScheduled.compareAndSet(false, true)) return;
+			BandwidthLimiter.RESUME.schedule(() -> Thread.startVirtualThread(() ->
+			{
+				resumeScheduled.set(false);
+				drain();
+			}), nanos, TimeUnit.NANOSECONDS);
+		}
+		
+		private ByteBuffer nextBuffer()
+				throws IOException
+		{
+			while(true)
+			{
+				if(channel != null)
+				{
+					if(remaining > 0L)
+						return readChunk();
+					closeChannel();
+				}
+				
+				if(!segments.hasNext())
+					return null;
+				
+				switch(segments.next())
+				{
+					case BytesSegment b ->
+					{
+						if(b.data().length > 0)
+							return ByteBuffer.wrap(b.data()).asReadOnlyBuffer();
+					}
+					case FileSegment f ->
+					{
+						if(f.length() > 0L)
+						{
+							channel = FileChannel.open(f.path(), StandardOpenOption.READ);
+							channelPath = f.path();
+							remaining = f.length();
+						}
+					}
+				}
+			}
+		}
+		
+		private ByteBuffer readChunk()
+				throws IOException
+		{
+			var buf = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, remaining));
+			while(buf.hasRemaining())
+				if(channel.read(buf) < 0)
+					throw new EOFException("File " + channelPath + " shrank while it was being uploaded");
+			remaining -= buf.capacity();
+			buf.flip();
+			if(digestion != null) digestion.feed(buf);
+			return buf;
+		}
+		
+		private void closeChannel()
+		{
+			var ch = channel;
+			channel = null;
+			channelPath = null;
+			remaining = 0L;
+			if(ch != null)
+				try
+				{
+					ch.close();
+				} catch(IOException ignored)
+				{
+				}
+		}
+	}
+	
 	public static class Builder
 	{
 		@Getter
@@ -41,6 +295,10 @@ public class HTTPRequestMultipartBody
 		
 		List<MultiPartRecord> parts;
 		
+		Hashers fileDigest;
+		
+		List<BandwidthLimiter> throttles = new ArrayList<>();
+		
 		public Builder()
 		{
 			this.parts = new ArrayList<>();
@@ -74,10 +332,31 @@ public class HTTPRequestMultipartBody
 			return this;
 		}
 		
+		/**
+		 * Digests file parts as they are sent, see {@link HTTPRequestMultipartBody#getSentChecksum()}.
+		 */
+		public Builder digestFiles(Hashers hasher)
+		{
+			this.fileDigest = hasher;
+			return this;
+		}
+		
+		/**
+		 * Paces the body through the given limiters (nulls are skipped); the slowest one wins.
+		 */
+		public Builder throttle(@Nullable BandwidthLimiter... limiters)
+		{
+			for(var limiter : limiters)
+				if(limiter != null)
+					this.throttles.add(limiter);
+			return this;
+		}
+		
 		public HTTPRequestMultipartBody build()
 				throws IOException
 		{
 			String boundary = "------WebKitFormBoundary" + new BigInteger(128, new SecureRandom());
+			List<Segment> segments = new ArrayList<>();
 			ByteArrayOutputStream out = new ByteArrayOutputStream();
 			for(MultiPartRecord record : parts)
 			{
@@ -105,7 +384,15 @@ public class HTTPRequestMultipartBody
 					case File file ->
 					{
 						out.write(("Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
-						Files.copy(file.toPath(), out);
+						flush(out, segments);
+						var path = file.toPath();
+						segments.add(new FileSegment(path, Files.size(path)));
+					}
+					case Path path ->
+					{
+						out.write(("Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+						flush(out, segments);
+						segments.add(new FileSegment(path, Files.size(path)));
 					}
 					case null, default ->
 					{
@@ -118,8 +405,16 @@ public class HTTPRequestMultipartBody
 				out.write("\r\n".getBytes(StandardCharsets.UTF_8));
 			}
 			out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+			flush(out, segments);
 			
-			return new HTTPRequestMultipartBody(out.toByteArray(), boundary);
+			return new HTTPRequestMultipartBody(segments, boundary, fileDigest, throttles);
+		}
+		
+		private static void flush(ByteArrayOutputStream out, List<Segment> segments)
+		{
+			if(out.size() == 0) return;
+			segments.add(new BytesSegment(out.toByteArray()));
+			out.reset();
 		}
 	}
 }
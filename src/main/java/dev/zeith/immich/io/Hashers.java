@@ -1,16 +1,33 @@
 package dev.zeith.immich.io;
 
+import dev.zeith.immich.log.Log;
+
 import java.io.*;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
-import java.util.ArrayList;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Hashers
 {
+	private static final Log LOG = Log.of("Hashers");
+	
 	public static final Hashers MD5 = new Hashers("MD5");
 	public static final Hashers SHA1 = new Hashers("SHA1");
 	public static final Hashers SHA256 = new Hashers("SHA256");
 	
+	/**
+	 * Size of the direct buffers files are read through. Buffers are pooled rather than thread-local,
+	 * since callers may be virtual threads that come and go with every file.
+	 */
+	public static final int BUFFER_SIZE = 1 << 20;
+	
+	private static final Queue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<>();
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
 	public static long hashCodeL(Object... a)
 	{
 		if(a == null)
@@ -40,11 +57,48 @@ public class Hashers
 		return result;
 	}
 	
+	public static String toHex(byte[] data)
+	{
+		char[] out = new char[data.length * 2];
+		toHex(data, out, 0);
+		return new String(out);
+	}
+	
+	/**
+	 * Writes the lowercase hex form of {@code data} into {@code out} starting at {@code offset}, without allocating.
+	 */
+	public static void toHex(byte[] data, char[] out, int offset)
+	{
+		for(byte b : data)
+		{
+			out[offset++] = HEX[(b >> 4) & 0xF];
+			out[offset++] = HEX[b & 0xF];
+		}
+	}
+	
+	static ByteBuffer borrowBuffer()
+	{
+		var buf = BUFFERS.poll();
+		return buf != null ? buf.clear() : ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+	
+	static void releaseBuffer(ByteBuffer buf)
+	{
+		BUFFERS.offer(buf);
+	}
+	
 	final String algorithm;
+	final int hexLength;
 	
 	public Hashers(String algorithm)
 	{
 		this.algorithm = algorithm;
+		this.hexLength = newDigest().getDigestLength() * 2;
+	}
+	
+	public int getHexLength()
+	{
+		return hexLength;
 	}
 	
 	public Digestion digestion()
@@ -68,15 +122,7 @@ public class Hashers
 		MessageDigest messageDigest = newDigest();
 		messageDigest.reset();
 		messageDigest.update(data);
-		byte[] digest = messageDigest.digest();
-		
-		BigInteger bigInt = new BigInteger(1, digest);
-		String md5Hex = bigInt.toString(16);
-		while(md5Hex.length() < 32)
-		{
-			md5Hex = "0" + md5Hex;
-		}
-		return md5Hex;
+		return toHex(messageDigest.digest());
 	}
 	
 	public String hashify(String line)
@@ -134,7 +180,7 @@ public class Hashers
 						.replace(File.separatorChar, ' ') + ";");
 			} catch(Throwable err)
 			{
-				err.printStackTrace(System.out);
+				LOG.warn("Failed to hash {}", k.getPath(), err);
 			}
 		}
 		return hashify(b.toString().getBytes());
@@ -144,25 +190,18 @@ public class Hashers
 	{
 		if(file.isDirectory())
 			return genFolderHash(file);
-		byte[] b = null;
 		try
 		{
-			b = createChecksum(file);
-		} catch(Exception e)
+			return toHex(createChecksum(file));
+		} catch(IOException e)
 		{
-			e.printStackTrace(System.out);
+			throw new UncheckedIOException(e);
 		}
-		BigInteger bigInt = new BigInteger(1, b);
-		String md5Hex = bigInt.toString(16);
-		while(md5Hex.length() < 32)
-			md5Hex = "0" + md5Hex;
-		return md5Hex;
 	}
 	
 	private byte[] createChecksum(File file)
-			throws Exception
+			throws IOException
 	{
-		int numRead;
 		if(!file.exists())
 		{
 			MessageDigest messageDigest = newDigest();
@@ -170,17 +209,10 @@ public class Hashers
 			messageDigest.update("0".getBytes());
 			return messageDigest.digest();
 		}
-		FileInputStream fis = new FileInputStream(file);
-		byte[] buffer = new byte[1024];
-		MessageDigest complete = MessageDigest.getInstance(algorithm);
-		do
+		try(var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
 		{
-			if((numRead = fis.read(buffer)) <= 0)
-				continue;
-			complete.update(buffer, 0, numRead);
-		} while(numRead != -1);
-		fis.close();
-		return complete.digest();
+			return digestion().start().feed(channel).digestRaw();
+		}
 	}
 	
 	public static class Digestion
@@ -211,6 +243,36 @@ public class Hashers
 			return this;
 		}
 		
+		/**
+		 * Feeds the remaining bytes of the buffer without changing its position, so the same buffer can be passed on afterwards.
+		 */
+		public Digestion feed(ByteBuffer input)
+		{
+			digest.update(input.duplicate());
+			return this;
+		}
+		
+		/**
+		 * Feeds everything left in the channel through a pooled {@link #BUFFER_SIZE} direct buffer.
+		 */
+		public Digestion feed(ReadableByteChannel channel)
+				throws IOException
+		{
+			var buf = borrowBuffer();
+			try
+			{
+				while(channel.read(buf) >= 0)
+				{
+					digest.update(buf.flip());
+					buf.clear();
+				}
+			} finally
+			{
+				releaseBuffer(buf);
+			}
+			return this;
+		}
+		
 		public byte[] digestRaw()
 		{
 			byte[] r = digest.digest();
@@ -220,11 +282,7 @@ public class Hashers
 		
 		public String digestHex()
 		{
-			BigInteger bigInt = new BigInteger(1, digestRaw());
-			String hex = bigInt.toString(16);
-			while(hex.length() < 32)
-				hex = "0" + hex;
-			return hex;
+			return toHex(digestRaw());
 		}
 	}
 }
\ No newline at end of file
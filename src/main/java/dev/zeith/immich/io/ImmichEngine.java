@@ -2,161 +2,779 @@ package dev.zeith.immich.io;
 
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
-import org.jetbrains.annotations.NotNull;
+import com.google.gson.stream.*;
+import dev.zeith.immich.log.Log;
+import dev.zeith.immich.metrics.*;
+import org.jetbrains.annotations.*;
 
 import java.io.*;
 import java.net.URI;
 import java.net.http.*;
-import java.nio.file.Files;
-import java.nio.file.attribute.BasicFileAttributeView;
-import java.time.Instant;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.*;
 import java.util.*;
-import java.util.function.UnaryOperator;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
+/**
+ * Client of the Immich API.
+ * <p>
+ * Every call is available as a non-blocking {@code ...Async} variant built on {@link HttpClient#sendAsync},
+ * so uploads, checks and album calls can be composed without a thread waiting on each request;
+ * the blocking methods simply wait for their async counterpart.
+ */
 public class ImmichEngine
 {
+	private static final Log LOG = Log.of("ImmichEngine");
+	
 	private final HttpClient httpClient;
 	private final Gson gson;
 	private final String immichUrl;
 	private final String apiKey;
+	private final ChecksumIndex checksums;
+	
+	private int bulkCheckBatchSize = 500;
+	private Executor hashExecutor = ForkJoinPool.commonPool();
+	private @Nullable Duration requestTimeout;
+	private @Nullable Duration uploadTimeout;
+	private @Nullable BandwidthLimiter uploadBandwidth;
+	private @Nullable ServerChecksumMirror checksumMirror;
+	
+	private final Histogram mediaTypesLatency = requestLatency("server/media-types");
+	private final Histogram pingLatency = requestLatency("server/ping");
+	private final Histogram bulkCheckLatency = requestLatency("assets/bulk-upload-check");
+	private final Histogram uploadLatency = requestLatency("assets");
+	private final Histogram albumLatency = requestLatency("albums/assets");
+	private final Histogram searchLatency = requestLatency("search/metadata");
+	private final Histogram hashLatency = MetricsRegistry.DEFAULT.latency("immich_hash_seconds", "Time spent reading and hashing a single file.");
+	private final Counter hashReads = MetricsRegistry.DEFAULT.counter("immich_hash_reads_total", "Files read from disk to compute their checksum.");
+	private final Counter hashIndexHits = MetricsRegistry.DEFAULT.counter("immich_hash_index_hits_total", "Checksums served from the checksum index without reading the file.");
+	private final Counter mirrorMisses = MetricsRegistry.DEFAULT.counter("immich_checksum_mirror_misses_total", "Files missing from the server checksum mirror, which skipped the bulk upload check.");
+	private final Counter bytesSent = MetricsRegistry.DEFAULT.counter("immich_upload_bytes_total", "Bytes of multipart upload bodies sent to the server.");
+	
+	private volatile Map<String, Set<String>> mediaTypesCache = Map.of();
+	private volatile Set<String> flatMediaTypesCache = Set.of();
 	
-	private Map<String, Set<String>> mediaTypesCache;
-	private Set<String> flatMediaTypesCache;
+	/**
+	 * Completed by the first response of the server, whatever its status.
+	 */
+	private final CompletableFuture<Void> reachable = new CompletableFuture<>();
+	private final CompletableFuture<Void> mediaTypesKnown = new CompletableFuture<>();
 	
 	public ImmichEngine(HttpClient httpClient, Gson gson, String immichUrl, String API_KEY)
+	{
+		this(httpClient, gson, immichUrl, API_KEY, null);
+	}
+	
+	public ImmichEngine(HttpClient httpClient, Gson gson, String immichUrl, String API_KEY, ChecksumIndex checksums)
 	{
 		this.httpClient = httpClient;
 		this.gson = gson;
 		this.immichUrl = URI.create(immichUrl).resolve("/api/").toString();
 		this.apiKey = API_KEY;
+		this.checksums = checksums;
 	}
 	
 	public void resolveMediaTypes()
 			throws IOException, InterruptedException
 	{
-		if(mediaTypesCache != null && flatMediaTypesCache != null) return;
-		
-		Map<String, Set<String>> mediaTypes = gson.fromJson(
-				httpClient.send(
-						authorized("server/media-types")
-								.GET()
-								.build(),
-						HttpResponse.BodyHandlers.ofString()
-				).body(),
-				new TypeToken<>() {}
-		);
-		
+		await(resolveMediaTypesAsync());
+	}
+	
+	public CompletableFuture<Void> resolveMediaTypesAsync()
+	{
+		if(!mediaTypesCache.isEmpty()) return CompletableFuture.completedFuture(null);
+		return fetchMediaTypesAsync().thenAccept(types -> {});
+	}
+	
+	/**
+	 * Fetches the media types from the server even if some are known already, and makes them the current ones.
+	 */
+	public Map<String, Set<String>> fetchMediaTypes()
+			throws IOException, InterruptedException
+	{
+		return await(fetchMediaTypesAsync());
+	}
+	
+	public CompletableFuture<Map<String, Set<String>>> fetchMediaTypesAsync()
+	{
+		return sendAsync(mediaTypesLatency,
+				api("server/media-types")
+						.GET()
+						.build(),
+				HttpResponse.BodyHandlers.ofString()
+		).thenApply(response ->
+		{
+			if(response.statusCode() / 100 != 2)
+				throw new CompletionException(new IOException("Media types request failed with HTTP " + response.statusCode()));
+			Map<String, Set<String>> types = gson.fromJson(response.body(), new TypeToken<Map<String, Set<String>>>() {});
+			setMediaTypes(types);
+			return types;
+		});
+	}
+	
+	/**
+	 * Checks that the server answers at all.
+	 */
+	public void ping()
+			throws IOException, InterruptedException
+	{
+		var response = await(sendAsync(pingLatency, api("server/ping").GET().build(), HttpResponse.BodyHandlers.discarding()));
+		if(response.statusCode() / 100 != 2) throw new IOException("Ping failed with HTTP " + response.statusCode());
+	}
+	
+	/**
+	 * Pings the server until it answers, waiting from 5 seconds up to 5 minutes between attempts.
+	 * Only the primary target has a media type refresh that makes it {@link #reachable()}; the others are pinged with this.
+	 */
+	public void pingUntilReachable()
+			throws InterruptedException
+	{
+		var wait = Duration.ofSeconds(5L);
+		var maxWait = Duration.ofMinutes(5L);
+		while(!reachable.isDone())
+		{
+			try
+			{
+				ping();
+			} catch(IOException e)
+			{
+				LOG.warn("Failed to reach {} ({}), retrying in {}s.", immichUrl, e, wait.toSeconds());
+				Thread.sleep(wait);
+				var next = wait.multipliedBy(2L);
+				wait = next.compareTo(maxWait) > 0 ? maxWait : next;
+			}
+		}
+	}
+	
+	/**
+	 * @return a future completed once the server has answered any request.
+	 */
+	public CompletableFuture<Void> reachable()
+	{
+		return reachable.copy();
+	}
+	
+	/**
+	 * Blocks until the server has answered any request, which the media type refresh keeps trying to make happen.
+	 */
+	public void awaitReachable()
+			throws InterruptedException
+	{
+		try
+		{
+			reachable.get();
+		} catch(ExecutionException e)
+		{
+			// never completed exceptionally
+		}
+	}
+	
+	public void setMediaTypes(Map<String, Set<String>> mediaTypes)
+	{
 		this.mediaTypesCache = mediaTypes.entrySet().stream().map(e -> Map.entry(e.getKey(), Set.copyOf(e.getValue()))).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
 		this.flatMediaTypesCache = Set.copyOf(mediaTypes.values().stream().flatMap(Set::stream).toList());
+		mediaTypesKnown.complete(null);
 	}
 	
+	/**
+	 * @return a future completed once any media types were loaded or fetched.
+	 */
+	public CompletableFuture<Void> mediaTypesKnown()
+	{
+		return mediaTypesKnown.copy();
+	}
+	
+	/**
+	 * @return the extensions of every media type category, empty until they are loaded or fetched.
+	 */
 	public @NotNull Set<String> getFlatMediaTypesCache()
 	{
 		return flatMediaTypesCache;
 	}
 	
+	/**
+	 * @return the extensions of one media type category, like {@code image} or {@code video}; empty if the server has no such category.
+	 */
+	public @NotNull Set<String> getMediaTypes(String category)
+	{
+		var types = mediaTypesCache;
+		return types != null ? types.getOrDefault(category, Set.of()) : Set.of();
+	}
+	
 	public @NotNull Map<String, Set<String>> getMediaTypesCache()
 			throws IOException, InterruptedException
 	{
 		return mediaTypesCache;
 	}
 	
-	public List<File> bulkUploadCheck(List<File> files)
-			throws IOException, InterruptedException
+	public @Nullable ChecksumIndex getChecksumIndex()
+	{
+		return checksums;
+	}
+	
+	/**
+	 * @return the checksum of the file if it is already known, without reading the file.
+	 */
+	public @Nullable String knownChecksum(File file)
 	{
-		if(files.isEmpty()) return List.of();
+		return checksums != null ? checksums.lookup(file) : null;
+	}
+	
+	public String checksum(File file)
+	{
+		var known = knownChecksum(file);
+		if(known != null)
+		{
+			hashIndexHits.inc();
+			return known;
+		}
 		
-		var json = new JsonObject();
+		long start = System.nanoTime();
+		var hash = checksums != null ? checksums.checksum(file) : Hashers.SHA1.genHash(file);
+		hashLatency.observeSince(start);
+		hashReads.inc();
+		return hash;
+	}
+	
+	public int getBulkCheckBatchSize()
+	{
+		return bulkCheckBatchSize;
+	}
+	
+	public void setBulkCheckBatchSize(int bulkCheckBatchSize)
+	{
+		this.bulkCheckBatchSize = Math.max(1, bulkCheckBatchSize);
+	}
+	
+	public void setHashExecutor(Executor hashExecutor)
+	{
+		this.hashExecutor = hashExecutor;
+	}
+	
+	/**
+	 * Sets the timeout of every API call except uploads; null means no timeout.
+	 */
+	public void setRequestTimeout(@Nullable Duration requestTimeout)
+	{
+		this.requestTimeout = requestTimeout;
+	}
+	
+	/**
+	 * Sets the timeout of asset uploads, which may legitimately take long for big files; null means no timeout.
+	 */
+	public void setUploadTimeout(@Nullable Duration uploadTimeout)
+	{
+		this.uploadTimeout = uploadTimeout;
+	}
+	
+	/**
+	 * Sets the bandwidth limit shared by all uploads; null means unlimited.
+	 */
+	public void setUploadBandwidth(@Nullable BandwidthLimiter uploadBandwidth)
+	{
+		this.uploadBandwidth = uploadBandwidth;
+	}
+	
+	/**
+	 * Lets files whose checksum the mirror does not know skip the bulk upload check, see {@link #isMirrorMiss(String)};
+	 * null asks the server about every file.
+	 */
+	public void setChecksumMirror(@Nullable ServerChecksumMirror checksumMirror)
+	{
+		this.checksumMirror = checksumMirror;
+	}
+	
+	/**
+	 * A checksum missing from the loaded mirror is almost certainly missing from the server, so its file can be uploaded
+	 * without asking first; should the mirror be stale, the server dedupes the upload by its checksum.
+	 * A mirrored checksum proves nothing, since the asset may have been deleted since, so those files are still asked about.
+	 *
+	 * @return whether the checksum mirror is loaded and lacks the checksum.
+	 */
+	public boolean isMirrorMiss(String checksum)
+	{
+		var mirror = checksumMirror;
+		if(mirror == null || !mirror.isLoaded() || mirror.contains(checksum)) return false;
+		mirrorMisses.inc();
+		return true;
+	}
+	
+	/**
+	 * Hash stage of the bulk check: computes (or looks up) the checksum of every file on the hash executor.
+	 * Files that cannot be read are left out of the result.
+	 */
+	public Map<File, String> checksums(List<File> files)
+	{
+		var futures = files
+				.stream()
+				.map(f -> CompletableFuture.supplyAsync(() -> checksum(f), hashExecutor))
+				.toList();
 		
-		Map<String, File> idMap = files.stream().collect(Collectors.toMap(f -> UUID.randomUUID().toString(), UnaryOperator.identity()));
+		Map<File, String> hashes = new LinkedHashMap<>();
+		for(int i = 0; i < files.size(); i++)
+		{
+			try
+			{
+				hashes.put(files.get(i), futures.get(i).join());
+			} catch(CompletionException e)
+			{
+				LOG.warn("Failed to hash {}", files.get(i).getPath(), e.getCause());
+			}
+		}
 		
-		var assets = new JsonArray();
+		if(checksums != null) checksums.flush();
+		return hashes;
+	}
+	
+	public BulkCheck bulkUploadCheck(List<File> files)
+			throws IOException, InterruptedException
+	{
+		if(files.isEmpty()) return BulkCheck.EMPTY;
+		return bulkUploadCheck(checksums(files));
+	}
+	
+	/**
+	 * Check stage of the bulk check: asks the server which of the already hashed files it still needs.
+	 *
+	 * @throws IOException if the server answers with an error status or without a {@code results} array.
+	 */
+	public BulkCheck bulkUploadCheck(Map<File, String> hashes)
+			throws IOException, InterruptedException
+	{
+		return await(bulkUploadCheckAsync(hashes));
+	}
+	
+	public CompletableFuture<BulkCheck> bulkUploadCheckAsync(Map<File, String> hashes)
+	{
+		if(hashes.isEmpty()) return CompletableFuture.completedFuture(BulkCheck.EMPTY);
 		
-		idMap.entrySet()
-			 .parallelStream()
-			 .map(f ->
-			 {
-				 JsonObject o = new JsonObject();
-				 o.addProperty("checksum", Hashers.SHA1.genHash(f.getValue()));
-				 o.addProperty("id", f.getKey());
-				 return o;
-			 })
-			 .forEach(assets::add);
+		// the id only correlates request and response, so the position in the batch is all it needs to be
+		var files = hashes.keySet().toArray(File[]::new);
+		Map<String, String> checksumsById = new LinkedHashMap<>();
+		for(int i = 0; i < files.length; i++)
+			checksumsById.put(Integer.toString(i), hashes.get(files[i]));
 		
-		json.add("assets", assets);
+		var request = api("assets/bulk-upload-check")
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(encodeBulkCheck(checksumsById)))
+				.build();
 		
-		var request = authorized("assets/bulk-upload-check")
+		return sendAsync(bulkCheckLatency, request, HttpResponse.BodyHandlers.ofByteArray())
+				.thenApply(response ->
+				{
+					if(response.statusCode() / 100 != 2)
+						throw new CompletionException(new IOException("Bulk upload check failed with HTTP " + response.statusCode()));
+					
+					List<File> accepted = new ArrayList<>(), rejected = new ArrayList<>();
+					try
+					{
+						decodeActions(new ByteArrayInputStream(response.body()), (id, action) ->
+						{
+							int index = parseIndex(id);
+							if(index < 0 || index >= files.length) return;
+							if("accept".equalsIgnoreCase(action)) accepted.add(files[index]);
+							else if("reject".equalsIgnoreCase(action)) rejected.add(files[index]);
+						});
+					} catch(IOException e)
+					{
+						throw new CompletionException(e);
+					}
+					return new BulkCheck(accepted, rejected);
+				});
+	}
+	
+	/**
+	 * Answer of a bulk upload check. Only files the server explicitly rejected are known to be on it;
+	 * a file that is in neither list was not answered for and must be asked about again.
+	 */
+	public record BulkCheck(List<File> accepted, List<File> rejected)
+	{
+		public static final BulkCheck EMPTY = new BulkCheck(List.of(), List.of());
+	}
+	
+	private static int parseIndex(String id)
+	{
+		try
+		{
+			return Integer.parseInt(id);
+		} catch(NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+	
+	/**
+	 * Writes the bulk check request straight to UTF-8 bytes, without building a JSON tree or an intermediate string.
+	 */
+	byte[] encodeBulkCheck(Map<String, String> checksumsById)
+	{
+		var bytes = new ByteArrayOutputStream(32 + checksumsById.size() * 72);
+		try(var json = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8)))
+		{
+			json.beginObject().name("assets").beginArray();
+			for(var e : checksumsById.entrySet())
+				json.beginObject()
+					.name("checksum").value(e.getValue())
+					.name("id").value(e.getKey())
+					.endObject();
+			json.endArray().endObject();
+		} catch(IOException e)
+		{
+			// nothing to fail when writing to memory
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Reads the id and action of every result of a bulk check response, token by token.
+	 *
+	 * @throws IOException if the body is not a JSON object with a {@code results} array.
+	 */
+	void decodeActions(InputStream body, BiConsumer<String, String> sink)
+			throws IOException
+	{
+		boolean hasResults = false;
+		try(var json = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8)))
+		{
+			json.beginObject();
+			while(json.hasNext())
+			{
+				if(!json.nextName().equals("results"))
+				{
+					json.skipValue();
+					continue;
+				}
+				
+				if(json.peek() != JsonToken.BEGIN_ARRAY) throw new IOException("Bulk upload check results are not an array but " + json.peek());
+				hasResults = true;
+				json.beginArray();
+				while(json.hasNext())
+				{
+					String id = null, action = null;
+					json.beginObject();
+					while(json.hasNext())
+					{
+						switch(json.nextName())
+						{
+							case "id" -> id = json.nextString();
+							case "action" -> action = json.nextString();
+							default -> json.skipValue();
+						}
+					}
+					json.endObject();
+					
+					if(id != null && action != null) sink.accept(id, action);
+				}
+				json.endArray();
+			}
+			json.endObject();
+		} catch(IllegalStateException e)
+		{
+			// JsonReader reports an unexpected token type this way
+			throw new IOException("Malformed bulk upload check response", e);
+		}
+		if(!hasResults) throw new IOException("Bulk upload check response has no results");
+	}
+	
+	/**
+	 * Pages through the checksums of all assets of the account, or of those updated after the given instant,
+	 * handing each one to {@code sink} as a raw 20-byte digest. Trashed assets are included, since the server dedupes against them too.
+	 */
+	public void assetChecksums(@Nullable Instant updatedAfter, int pageSize, Consumer<byte[]> sink)
+			throws IOException, InterruptedException
+	{
+		Integer page = 1;
+		while(page != null)
+			page = await(assetChecksumsAsync(updatedAfter, page, pageSize, sink));
+	}
+	
+	/**
+	 * Fetches one page of {@link #assetChecksums}.
+	 *
+	 * @return the next page, or null if this was the last one.
+	 */
+	public CompletableFuture<@Nullable Integer> assetChecksumsAsync(@Nullable Instant updatedAfter, int page, int pageSize, Consumer<byte[]> sink)
+	{
+		var json = new JsonObject();
+		json.addProperty("page", page);
+		json.addProperty("size", pageSize);
+		json.addProperty("withDeleted", true);
+		if(updatedAfter != null) json.addProperty("updatedAfter", updatedAfter.toString());
+		
+		var request = api("search/metadata")
 				.header("Content-Type", "application/json")
 				.POST(HttpRequest.BodyPublishers.ofString(json.toString()))
 				.build();
 		
-		var response = gson.fromJson(httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body(), JsonObject.class);
-		var results = response.getAsJsonArray("results");
-		
-		return StreamSupport
-				.stream(results.spliterator(), false)
-				.map(JsonElement::getAsJsonObject)
-				.filter(j -> j.getAsJsonPrimitive("action").getAsString().equalsIgnoreCase("accept"))
-				.map(j -> j.getAsJsonPrimitive("id"))
-				.map(JsonElement::getAsString)
-				.map(idMap::get)
-				.filter(Objects::nonNull)
-				.toList();
+		return sendAsync(searchLatency, request, HttpResponse.BodyHandlers.ofByteArray())
+				.thenApply(response ->
+				{
+					if(response.statusCode() / 100 != 2)
+						throw new CompletionException(new IOException("Asset search failed with HTTP " + response.statusCode()));
+					try
+					{
+						return decodeChecksumPage(new ByteArrayInputStream(response.body()), sink);
+					} catch(IOException e)
+					{
+						throw new CompletionException(e);
+					}
+				});
+	}
+	
+	/**
+	 * Reads the checksums of {@code assets.items} from a search response, token by token.
+	 *
+	 * @return {@code assets.nextPage}, or null if there is none.
+	 */
+	@Nullable Integer decodeChecksumPage(InputStream body, Consumer<byte[]> sink)
+			throws IOException
+	{
+		Integer nextPage = null;
+		try(var json = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8)))
+		{
+			json.beginObject();
+			while(json.hasNext())
+			{
+				if(!json.nextName().equals("assets") || json.peek() != JsonToken.BEGIN_OBJECT)
+				{
+					json.skipValue();
+					continue;
+				}
+				
+				json.beginObject();
+				while(json.hasNext())
+				{
+					var name = json.nextName();
+					if(name.equals("nextPage") && json.peek() != JsonToken.NULL)
+					{
+						int next = parseIndex(json.nextString());
+						nextPage = next > 0 ? next : null;
+					} else if(name.equals("items") && json.peek() == JsonToken.BEGIN_ARRAY)
+					{
+						json.beginArray();
+						while(json.hasNext())
+						{
+							json.beginObject();
+							while(json.hasNext())
+							{
+								if(json.nextName().equals("checksum") && json.peek() == JsonToken.STRING)
+								{
+									var digest = ServerChecksumMirror.decode(json.nextString());
+									if(digest != null) sink.accept(digest);
+								} else json.skipValue();
+							}
+							json.endObject();
+						}
+						json.endArray();
+					} else json.skipValue();
+				}
+				json.endObject();
+			}
+			json.endObject();
+		}
+		return nextPage;
 	}
 	
 	public JsonElement addToAlbum(String album, List<JsonObject> objects)
 			throws IOException, InterruptedException
 	{
-		var json = new JsonObject();
-		
-		var ids = new JsonArray();
+		List<String> ids = new ArrayList<>();
 		for(JsonObject object : objects)
 		{
 			if(object.has("id"))
 			{
-				ids.add(object.getAsJsonPrimitive("id"));
+				ids.add(object.getAsJsonPrimitive("id").getAsString());
 			}
 		}
 		
+		return addAssetsToAlbum(album, ids);
+	}
+	
+	public JsonElement addAssetsToAlbum(String album, Collection<String> assetIds)
+			throws IOException, InterruptedException
+	{
+		return await(addAssetsToAlbumAsync(album, assetIds));
+	}
+	
+	public CompletableFuture<JsonElement> addAssetsToAlbumAsync(String album, Collection<String> assetIds)
+	{
+		var json = new JsonObject();
+		
+		var ids = new JsonArray();
+		for(String id : assetIds) ids.add(id);
+		
 		json.add("ids", ids);
 		
-		var request = authorized("albums/" + album + "/assets")
+		var request = api("albums/" + album + "/assets")
 				.header("Content-Type", "application/json")
 				.PUT(HttpRequest.BodyPublishers.ofString(json.toString()))
 				.build();
 		
-		var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-		
-		return gson.fromJson(response.body(), JsonElement.class);
+		return sendAsync(albumLatency, request, HttpResponse.BodyHandlers.ofString())
+				.thenApply(response ->
+				{
+					if(response.statusCode() / 100 != 2)
+						throw new CompletionException(new IOException("Adding assets to album " + album + " failed with HTTP " + response.statusCode()));
+					return gson.fromJson(response.body(), JsonElement.class);
+				});
 	}
 	
 	public JsonObject uploadImage(File targetFile)
 			throws IOException, InterruptedException
 	{
-		var times = Files.getFileAttributeView(targetFile.toPath(), BasicFileAttributeView.class);
-		var attrs = times.readAttributes();
+		return uploadImage(targetFile, null);
+	}
+	
+	/**
+	 * Uploads the file while digesting the very bytes that are sent, so the file is read only once.
+	 * A known checksum goes out as {@code x-immich-checksum} to let the server dedupe, and is verified against
+	 * the sent bytes afterwards; an unknown one is computed on the way and stored in the checksum index.
+	 *
+	 * @throws IOException if the file no longer matches {@code expectedChecksum}, meaning it changed after it was hashed.
+	 */
+	public JsonObject uploadImage(File targetFile, @Nullable String expectedChecksum)
+			throws IOException, InterruptedException
+	{
+		return uploadImage(targetFile, expectedChecksum, null);
+	}
+	
+	/**
+	 * Like {@link #uploadImage(File, String)}, with the upload additionally paced by {@code bandwidth} on top of the shared limit.
+	 */
+	public JsonObject uploadImage(File targetFile, @Nullable String expectedChecksum, @Nullable BandwidthLimiter bandwidth)
+			throws IOException, InterruptedException
+	{
+		return await(uploadImageAsync(targetFile, expectedChecksum, bandwidth));
+	}
+	
+	/**
+	 * Like {@link #uploadImage(File, String, BandwidthLimiter)}, but sends the bytes of {@code content} in place of the file's own,
+	 * such as a recompressed copy; the name and timestamps still come from {@code targetFile}.
+	 */
+	public JsonObject uploadImage(File targetFile, @Nullable Path content, @Nullable String expectedChecksum, @Nullable BandwidthLimiter bandwidth)
+			throws IOException, InterruptedException
+	{
+		return await(uploadImageAsync(targetFile, content, expectedChecksum, bandwidth));
+	}
+	
+	/**
+	 * Non-blocking variant of {@link #uploadImage(File, String)}; the file is read while the request body is being sent.
+	 */
+	public CompletableFuture<JsonObject> uploadImageAsync(File targetFile, @Nullable String expectedChecksum)
+	{
+		return uploadImageAsync(targetFile, expectedChecksum, null);
+	}
+	
+	/**
+	 * Non-blocking variant of {@link #uploadImage(File, String, BandwidthLimiter)}.
+	 */
+	public CompletableFuture<JsonObject> uploadImageAsync(File targetFile, @Nullable String expectedChecksum, @Nullable BandwidthLimiter bandwidth)
+	{
+		return uploadImageAsync(targetFile, null, expectedChecksum, bandwidth);
+	}
+	
+	/**
+	 * Non-blocking variant of {@link #uploadImage(File, Path, String, BandwidthLimiter)}.
+	 * The checksum of a {@code content} copy is not stored in the checksum index, which only knows the files themselves.
+	 */
+	public CompletableFuture<JsonObject> uploadImageAsync(File targetFile, @Nullable Path content, @Nullable String expectedChecksum, @Nullable BandwidthLimiter bandwidth)
+	{
+		BasicFileAttributes attrs;
+		HTTPRequestMultipartBody multipartBody;
+		try
+		{
+			attrs = Files.readAttributes(targetFile.toPath(), BasicFileAttributes.class);
+			multipartBody = uploadBody(targetFile, content, attrs, uploadBandwidth, bandwidth);
+		} catch(IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		var request = authorized("assets")
+				.header("Content-Type", multipartBody.getContentType());
+		if(uploadTimeout != null) request.timeout(uploadTimeout);
+		if(expectedChecksum != null) request.header("x-immich-checksum", expectedChecksum);
 		
+		return sendAsync(uploadLatency, request.POST(multipartBody).build(), HttpResponse.BodyHandlers.ofString())
+				.thenApply(response ->
+				{
+					bytesSent.add(multipartBody.contentLength());
+					
+					var sent = multipartBody.getSentChecksum();
+					if(sent != null)
+					{
+						if(expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(sent))
+							throw new CompletionException(new IOException("File " + targetFile + " changed while it was being uploaded (expected " + expectedChecksum + ", sent " + sent + ")"));
+						if(checksums != null && content == null) checksums.remember(targetFile, attrs, sent);
+					}
+					
+					var result = gson.fromJson(response.body(), JsonObject.class);
+					if(sent != null && checksumMirror != null && result != null && result.has("id")) checksumMirror.add(sent);
+					return result;
+				});
+	}
+	
+	private static HTTPRequestMultipartBody uploadBody(File targetFile, @Nullable Path content, BasicFileAttributes attrs, @Nullable BandwidthLimiter... bandwidth)
+			throws IOException
+	{
 		UnaryOperator<Instant> nanoStripper = inst -> Instant.ofEpochMilli(inst.toEpochMilli());
 		
-		HTTPRequestMultipartBody multipartBody = new HTTPRequestMultipartBody.Builder()
+		return new HTTPRequestMultipartBody.Builder()
 				.addPart("deviceAssetId", "web-%s-%s".formatted(targetFile.getName(), Long.toUnsignedString(attrs.creationTime().toMillis())))
 				.addPart("deviceId", "WEB")
 				.addPart("fileCreatedAt", nanoStripper.apply(attrs.creationTime().toInstant()).toString())
 				.addPart("fileModifiedAt", nanoStripper.apply(attrs.lastModifiedTime().toInstant()).toString())
 				.addPart("isFavorite", "false")
 				.addPart("duration", "0:00:00.000000")
-				.addPart("assetData", targetFile, "application/octet-stream", targetFile.getName())
+				.addPart("assetData", content != null ? content : targetFile, "application/octet-stream", targetFile.getName())
+				.digestFiles(Hashers.SHA1)
+				.throttle(bandwidth)
 				.build();
-		
-		var request = authorized("assets")
-				.header("Content-Type", multipartBody.getContentType())
-				.POST(HttpRequest.BodyPublishers.ofByteArray(multipartBody.getBody()))
-				.build();
-		
-		var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-		
-		return gson.fromJson(response.body(), JsonObject.class);
+	}
+	
+	private static Histogram requestLatency(String endpoint)
+	{
+		return MetricsRegistry.DEFAULT.latency("immich_http_request_seconds", "Latency of Immich API requests, including the request body upload.", "endpoint", endpoint);
+	}
+	
+	private <T> CompletableFuture<HttpResponse<T>> sendAsync(Histogram latency, HttpRequest request, HttpResponse.BodyHandler<T> handler)
+	{
+		long start = System.nanoTime();
+		var response = httpClient.sendAsync(request, handler);
+		response.whenComplete((r, e) ->
+		{
+			latency.observeSince(start);
+			if(r != null) reachable.complete(null);
+		});
+		return response;
+	}
+	
+	/**
+	 * Waits for an async call, rethrowing its failure the way the blocking API always did.
+	 */
+	static <T> T await(CompletableFuture<T> future)
+			throws IOException, InterruptedException
+	{
+		try
+		{
+			return future.get();
+		} catch(InterruptedException e)
+		{
+			future.cancel(true);
+			throw e;
+		} catch(ExecutionException e)
+		{
+			var cause = e.getCause();
+			if(cause instanceof IOException io) throw io;
+			if(cause instanceof RuntimeException re) throw re;
+			if(cause instanceof Error err) throw err;
+			throw new IOException(cause);
+		}
 	}
 	
 	private HttpRequest.Builder authorized(String sub)
@@ -166,4 +784,14 @@ public class ImmichEngine
 				.uri(URI.create(immichUrl + sub))
 				.header("x-api-key", apiKey);
 	}
+	
+	/**
+	 * A regular API call, bounded by the request timeout.
+	 */
+	private HttpRequest.Builder api(String sub)
+	{
+		var request = authorized(sub);
+		if(requestTimeout != null) request.timeout(requestTimeout);
+		return request;
+	}
 }
\ No newline at end of file
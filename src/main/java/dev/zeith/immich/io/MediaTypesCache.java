@@ -0,0 +1,143 @@
+package dev.zeith.immich.io;
+
+import com.google.gson.*;
+import dev.zeith.immich.log.Log;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the server's media types on disk, so the process can start scanning without waiting for the server.
+ * <p>
+ * {@link #load()} hands the persisted types to the engine right away; {@link #start()} then refreshes them in the background
+ * once they are older than the TTL, and retries with a growing delay while the server cannot be reached.
+ * Every successful refresh is written back to the file.
+ * While the persisted types are still fresh, the server is only pinged at startup, so {@link ImmichEngine#reachable()} completes all the same.
+ */
+public class MediaTypesCache
+		implements AutoCloseable
+{
+	private static final Log LOG = Log.of("MediaTypesCache");
+	
+	protected static final Duration MIN_RETRY = Duration.ofSeconds(5L);
+	protected static final Duration MAX_RETRY = Duration.ofMinutes(5L);
+	
+	protected record Persisted(long fetchedAt, Map<String, Set<String>> types)
+	{
+	}
+	
+	protected final ImmichEngine immich;
+	protected final Gson gson;
+	protected final Path file;
+	protected final Duration ttl;
+	
+	protected final ScheduledExecutorService timer;
+	
+	private Instant fetchedAt = Instant.MIN;
+	private Duration retry = MIN_RETRY;
+	
+	public MediaTypesCache(ImmichEngine immich, Gson gson, Path file, Duration ttl)
+	{
+		this.immich = immich;
+		this.gson = gson;
+		this.file = file;
+		this.ttl = ttl;
+		this.timer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("MediaTypes").daemon().factory());
+	}
+	
+	/**
+	 * Hands the persisted media types to the engine.
+	 *
+	 * @return false if there are none, or they could not be read.
+	 */
+	public boolean load()
+	{
+		if(!Files.isRegularFile(file)) return false;
+		try
+		{
+			var persisted = gson.fromJson(Files.readString(file), Persisted.class);
+			if(persisted == null || persisted.types() == null || persisted.types().isEmpty()) return false;
+			immich.setMediaTypes(persisted.types());
+			fetchedAt = Instant.ofEpochMilli(persisted.fetchedAt());
+			return true;
+		} catch(IOException | JsonParseException e)
+		{
+			LOG.warn("Failed to read cached media types from {}", file, e);
+			return false;
+		}
+	}
+	
+	public void start()
+	{
+		schedule(Duration.ZERO);
+	}
+	
+	/**
+	 * @return how long the current types stay fresh, zero if they are missing or expired.
+	 */
+	protected Duration untilExpiry()
+	{
+		var delay = Duration.between(Instant.now(), fetchedAt.plus(ttl));
+		if(delay.isNegative()) return Duration.ZERO;
+		// a fetch time in the future means the clock was turned back, so the types are refreshed within one TTL at most
+		return delay.compareTo(ttl) > 0 ? ttl : delay;
+	}
+	
+	protected void schedule(Duration delay)
+	{
+		if(!timer.isShutdown())
+			timer.schedule(this::refresh, delay.toMillis(), TimeUnit.MILLISECONDS);
+	}
+	
+	protected void refresh()
+	{
+		try
+		{
+			var fresh = untilExpiry();
+			if(!fresh.isZero())
+			{
+				if(!immich.reachable().isDone()) immich.ping();
+				retry = MIN_RETRY;
+				schedule(fresh);
+				return;
+			}
+			
+			var types = immich.fetchMediaTypes();
+			fetchedAt = Instant.now();
+			retry = MIN_RETRY;
+			save(types);
+			schedule(ttl);
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		} catch(Exception e)
+		{
+			LOG.warn("Failed to reach the server ({}), retrying in {}s.", e, retry.toSeconds());
+			schedule(retry);
+			var next = retry.multipliedBy(2L);
+			retry = next.compareTo(MAX_RETRY) > 0 ? MAX_RETRY : next;
+		}
+	}
+	
+	protected void save(Map<String, Set<String>> types)
+	{
+		try
+		{
+			var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			Files.writeString(tmp, gson.toJson(new Persisted(fetchedAt.toEpochMilli(), types)));
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e)
+		{
+			LOG.error("Failed to store media types in {}", file, e);
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		timer.shutdownNow();
+	}
+}
\ No newline at end of file
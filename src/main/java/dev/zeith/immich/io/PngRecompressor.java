@@ -0,0 +1,375 @@
+package dev.zeith.immich.io;
+
+import dev.zeith.immich.log.Log;
+import lombok.SneakyThrows;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+
+/**
+ * Re-encodes PNG files losslessly with a stronger deflate and per-row filter selection, so fewer bytes go over the wire.
+ * <p>
+ * Only the image data changes: the IDAT chunks are inflated and unfiltered, then filtered again in each of a few ways:
+ * with the same filter on every row, or with whichever filter leaves the smallest sum of absolute differences per row.
+ * Every way is tried with a quick deflate, and the smallest one is deflated at the highest level into new IDAT chunks
+ * in place of the old ones. Every other chunk is copied byte for byte, and the new data is inflated and unfiltered once
+ * more and compared with the original scanlines before it is used. The same input always gives the same output,
+ * so a copy's checksum is stable. Interlaced images and images with more than {@link #MAX_RAW_BYTES} of scanlines
+ * are left alone; about three times that much memory is needed while an image is worked on.
+ * <p>
+ * The work runs on the given executor, whose size bounds the CPU and memory it takes; copies are written to a directory
+ * of their own, which is emptied when the recompressor is created.
+ */
+public class PngRecompressor
+{
+	private static final Log LOG = Log.of("PngRecompressor");
+	
+	protected static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	protected static final int IHDR = 0x49484452;
+	protected static final int IDAT = 0x49444154;
+	protected static final int IEND = 0x49454E44;
+	
+	public static final int MAX_RAW_BYTES = 128 * 1024 * 1024;
+	protected static final int IDAT_SIZE = 256 * 1024;
+	
+	/**
+	 * Filter "type" that picks the filter of every row on its own.
+	 */
+	protected static final int ADAPTIVE = -1;
+	
+	/**
+	 * A recompressed copy of a file and the checksum of its bytes.
+	 */
+	public record Result(Path path, String checksum, long originalSize, long size)
+	{
+	}
+	
+	protected final Executor executor;
+	protected final Path directory;
+	protected final AtomicLong copies = new AtomicLong();
+	
+	public PngRecompressor(Executor executor, Path directory)
+			throws IOException
+	{
+		this.executor = executor;
+		this.directory = Files.createDirectories(directory);
+		
+		// copies left over from a previous run belong to nothing anymore
+		try(var stale = Files.list(directory))
+		{
+			stale.forEach(p -> p.toFile().delete());
+		}
+	}
+	
+	/**
+	 * @param minGain the fraction of the file size the copy has to save, such as {@code 0.05} for 5%.
+	 * @return a future of the copy, or of null if the file is not a PNG this can recompress or the copy would not save enough.
+	 */
+	public CompletableFuture<@Nullable Result> recompressAsync(File file, double minGain)
+	{
+		return CompletableFuture.supplyAsync(() -> recompress(file, minGain), executor);
+	}
+	
+	@SneakyThrows
+	public @Nullable Result recompress(File file, double minGain)
+	{
+		var png = Files.readAllBytes(file.toPath());
+		var data = recompress(png);
+		if(data == null || png.length - data.length < png.length * minGain) return null;
+		
+		var path = directory.resolve(copies.incrementAndGet() + "-" + file.getName());
+		Files.write(path, data);
+		return new Result(path, Hashers.SHA1.hashify(data), png.length, data.length);
+	}
+	
+	/**
+	 * Deletes a copy once nothing is going to send it anymore.
+	 */
+	public void release(@Nullable Result result)
+	{
+		if(result == null) return;
+		try
+		{
+			Files.deleteIfExists(result.path());
+		} catch(IOException e)
+		{
+			LOG.warn("Failed to delete {}", result.path(), e);
+		}
+	}
+	
+	/**
+	 * @return the recompressed PNG, or null if the data is no PNG this can recompress.
+	 */
+	public static byte @Nullable [] recompress(byte[] png)
+	{
+		if(png.length < SIGNATURE.length || !Arrays.equals(png, 0, SIGNATURE.length, SIGNATURE, 0, SIGNATURE.length)) return null;
+		
+		var buf = ByteBuffer.wrap(png);
+		buf.position(SIGNATURE.length);
+		
+		long width = -1L, height = -1L;
+		int bitDepth = 0, colorType = 0;
+		int firstIdat = -1, afterIdat = -1;
+		List<int[]> idats = new ArrayList<>();
+		while(buf.remaining() >= 12)
+		{
+			int start = buf.position();
+			int length = buf.getInt();
+			int type = buf.getInt();
+			if(length < 0 || length > buf.remaining() - 4) return null;
+			
+			if(type == IHDR)
+			{
+				if(length != 13) return null;
+				width = Integer.toUnsignedLong(buf.getInt());
+				height = Integer.toUnsignedLong(buf.getInt());
+				bitDepth = buf.get();
+				colorType = buf.get();
+				// compression, filter method and interlace must all be 0
+				if(buf.get() != 0 || buf.get() != 0 || buf.get() != 0) return null;
+			} else if(type == IDAT)
+			{
+				// the data has to be one run of consecutive chunks to be replaced in place
+				if(firstIdat < 0) firstIdat = start;
+				else if(afterIdat != start) return null;
+				idats.add(new int[] {start + 8, length});
+				afterIdat = start + 12 + length;
+			}
+			
+			buf.position(start + 12 + length);
+			if(type == IEND) break;
+		}
+		if(width <= 0L || height <= 0L || idats.isEmpty()) return null;
+		
+		int channels = switch(colorType)
+		{
+			case 0, 3 -> 1;
+			case 2 -> 3;
+			case 4 -> 2;
+			case 6 -> 4;
+			default -> 0;
+		};
+		if(channels == 0 || Integer.bitCount(bitDepth) != 1 || bitDepth > 16 || colorType == 3 && bitDepth > 8 || colorType > 0 && colorType != 3 && bitDepth < 8) return null;
+		
+		int bitsPerPixel = channels * bitDepth;
+		long rowBytes = (width * bitsPerPixel + 7L) / 8L;
+		long rawSize = (rowBytes + 1L) * height;
+		if(rawSize > MAX_RAW_BYTES) return null;
+		
+		var raw = new byte[(int) rawSize];
+		if(!inflate(png, idats, raw)) return null;
+		int bpp = Math.max(1, bitsPerPixel / 8);
+		if(!unfilter(raw, (int) height, (int) rowBytes, bpp)) return null;
+		
+		var filtered = new byte[raw.length];
+		var candidate = new byte[raw.length];
+		long best = Long.MAX_VALUE;
+		for(int type = ADAPTIVE; type <= 4; type++)
+		{
+			filter(raw, candidate, (int) height, (int) rowBytes, bpp, type);
+			// the fastest level ranks the ways to filter just like the best one does, at a fraction of the time
+			long size = deflate(candidate, Deflater.BEST_SPEED, null);
+			if(size < best)
+			{
+				best = size;
+				var swap = filtered;
+				filtered = candidate;
+				candidate = swap;
+			}
+		}
+		
+		var deflated = new ByteArrayOutputStream(filtered.length / 4);
+		deflate(filtered, Deflater.BEST_COMPRESSION, deflated);
+		var compressed = deflated.toByteArray();
+		
+		// the new data must give back exactly the same scanlines before it replaces the old
+		if(!inflate(compressed, candidate) || !unfilter(candidate, (int) height, (int) rowBytes, bpp) || !sameScanlines(raw, candidate, (int) height, (int) rowBytes)) return null;
+		
+		var out = new ByteArrayOutputStream(firstIdat + compressed.length + png.length - afterIdat + 12 * (compressed.length / IDAT_SIZE + 1));
+		out.write(png, 0, firstIdat);
+		var crc = new CRC32();
+		for(int off = 0; off < compressed.length; off += IDAT_SIZE)
+		{
+			int length = Math.min(IDAT_SIZE, compressed.length - off);
+			var header = ByteBuffer.allocate(8).putInt(length).putInt(IDAT).array();
+			crc.reset();
+			crc.update(header, 4, 4);
+			crc.update(compressed, off, length);
+			out.write(header, 0, 8);
+			out.write(compressed, off, length);
+			out.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array(), 0, 4);
+		}
+		out.write(png, afterIdat, png.length - afterIdat);
+		return out.toByteArray();
+	}
+	
+	protected static boolean inflate(byte[] png, List<int[]> chunks, byte[] raw)
+	{
+		var inflater = new Inflater();
+		var spare = new byte[1];
+		try
+		{
+			int written = 0;
+			for(int[] chunk : chunks)
+			{
+				inflater.setInput(png, chunk[0], chunk[1]);
+				while(!inflater.needsInput() && !inflater.finished())
+				{
+					if(inflater.needsDictionary()) return false;
+					if(written < raw.length) written += inflater.inflate(raw, written, raw.length - written);
+					// only the end of the stream may be left once the scanlines are complete
+					else if(inflater.inflate(spare) > 0) return false;
+				}
+				if(inflater.finished()) break;
+			}
+			return inflater.finished() && written == raw.length;
+		} catch(DataFormatException e)
+		{
+			return false;
+		} finally
+		{
+			inflater.end();
+		}
+	}
+	
+	protected static boolean inflate(byte[] data, byte[] raw)
+	{
+		return inflate(data, List.<int[]> of(new int[] {0, data.length}), raw);
+	}
+	
+	/**
+	 * @param out where the deflated data goes, or null to only count it.
+	 * @return the size of the deflated data.
+	 */
+	protected static long deflate(byte[] data, int level, @Nullable ByteArrayOutputStream out)
+	{
+		var deflater = new Deflater(level);
+		try
+		{
+			deflater.setInput(data);
+			deflater.finish();
+			var chunk = new byte[64 * 1024];
+			long size = 0L;
+			while(!deflater.finished())
+			{
+				int n = deflater.deflate(chunk);
+				if(out != null) out.write(chunk, 0, n);
+				size += n;
+			}
+			return size;
+		} finally
+		{
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * Reverses the filter of every row in place; the filter type bytes are left as they are.
+	 *
+	 * @return false on an unknown filter type.
+	 */
+	protected static boolean unfilter(byte[] data, int height, int rowBytes, int bpp)
+	{
+		int stride = rowBytes + 1;
+		for(int y = 0; y < height; y++)
+		{
+			int row = y * stride + 1, prev = row - stride;
+			int type = data[row - 1];
+			if(type < 0 || type > 4) return false;
+			if(type == 0) continue;
+			
+			for(int i = 0; i < rowBytes; i++)
+			{
+				int a = i >= bpp ? data[row + i - bpp] & 0xFF : 0;
+				int b = y > 0 ? data[prev + i] & 0xFF : 0;
+				int c = i >= bpp && y > 0 ? data[prev + i - bpp] & 0xFF : 0;
+				data[row + i] += (byte) predict(type, a, b, c);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Filters every row of the unfiltered {@code raw} scanlines into {@code out} with the given filter type,
+	 * or with the one of each row that leaves the smallest sum of absolute differences for {@link #ADAPTIVE}.
+	 */
+	protected static void filter(byte[] raw, byte[] out, int height, int rowBytes, int bpp, int filter)
+	{
+		int stride = rowBytes + 1;
+		var row = new byte[rowBytes];
+		for(int y = 0; y < height; y++)
+		{
+			int at = y * stride + 1;
+			if(filter != ADAPTIVE)
+			{
+				out[at - 1] = (byte) filter;
+				filterRow(raw, y, stride, bpp, filter, out, at);
+				continue;
+			}
+			
+			long best = Long.MAX_VALUE;
+			for(int type = 0; type <= 4; type++)
+			{
+				long sum = filterRow(raw, y, stride, bpp, type, row, 0);
+				if(sum < best)
+				{
+					best = sum;
+					out[at - 1] = (byte) type;
+					System.arraycopy(row, 0, out, at, rowBytes);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Filters row {@code y} of {@code raw} with the given type into {@code out} at {@code off}.
+	 *
+	 * @return the sum of the absolute values of the filtered bytes, taken as signed.
+	 */
+	protected static long filterRow(byte[] raw, int y, int stride, int bpp, int type, byte[] out, int off)
+	{
+		int row = y * stride + 1, prev = row - stride, rowBytes = stride - 1;
+		long sum = 0L;
+		for(int i = 0; i < rowBytes; i++)
+		{
+			int a = i >= bpp ? raw[row + i - bpp] & 0xFF : 0;
+			int b = y > 0 ? raw[prev + i] & 0xFF : 0;
+			int c = i >= bpp && y > 0 ? raw[prev + i - bpp] & 0xFF : 0;
+			byte v = (byte) (raw[row + i] - predict(type, a, b, c));
+			out[off + i] = v;
+			sum += Math.abs(v);
+		}
+		return sum;
+	}
+	
+	protected static int predict(int type, int a, int b, int c)
+	{
+		return switch(type)
+		{
+			case 1 -> a;
+			case 2 -> b;
+			case 3 -> (a + b) >>> 1;
+			case 4 ->
+			{
+				int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+				yield pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+			}
+			default -> 0;
+		};
+	}
+	
+	protected static boolean sameScanlines(byte[] a, byte[] b, int height, int rowBytes)
+	{
+		int stride = rowBytes + 1;
+		for(int y = 0; y < height; y++)
+			if(!Arrays.equals(a, y * stride + 1, (y + 1) * stride, b, y * stride + 1, (y + 1) * stride))
+				return false;
+		return true;
+	}
+}
\ No newline at end of file
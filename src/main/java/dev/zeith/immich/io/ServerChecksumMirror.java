@@ -0,0 +1,279 @@
+package dev.zeith.immich.io;
+
+import dev.zeith.immich.log.Log;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In-memory copy of the checksums of every asset the server holds for this account.
+ * <p>
+ * The mirror is filled by paging through {@code search/metadata} once, then refreshed with only the assets
+ * updated since the previous sync, and learns the checksum of every asset we upload ourselves.
+ * A file whose checksum is not mirrored is new to the server, so it is uploaded without an {@code assets/bulk-upload-check}
+ * round trip; if the mirror missed an asset, the server dedupes the upload by its checksum.
+ * <p>
+ * Assets deleted on the server are only noticed by the periodic rebuild from scratch; until then their checksums stay mirrored.
+ * A mirrored checksum is therefore never taken as proof of anything, its file is still asked about before it is skipped or deleted.
+ * <p>
+ * Checksums are kept as raw 20-byte SHA-1 digests in a {@link DigestSet}, not as strings.
+ */
+public class ServerChecksumMirror
+		implements AutoCloseable
+{
+	private static final Log LOG = Log.of("ServerChecksumMirror");
+	
+	/**
+	 * Incremental syncs ask for a bit more than strictly needed, so assets updated while the previous sync ran
+	 * (or stamped by a server clock running behind ours) are not missed.
+	 */
+	protected static final Duration OVERLAP = Duration.ofMinutes(5L);
+	
+	protected final ImmichEngine immich;
+	protected final int pageSize;
+	protected final Duration refreshInterval;
+	protected final Duration rebuildInterval;
+	
+	protected final ScheduledExecutorService timer;
+	
+	private DigestSet digests = new DigestSet(1024);
+	private @Nullable List<byte[]> learnedDuringRebuild;
+	
+	private @Nullable Instant syncedFrom;
+	private Instant nextRebuild = Instant.MIN;
+	private volatile boolean loaded;
+	
+	public ServerChecksumMirror(ImmichEngine immich, int pageSize, Duration refreshInterval, Duration rebuildInterval)
+	{
+		this.immich = immich;
+		this.pageSize = Math.max(1, pageSize);
+		this.refreshInterval = refreshInterval;
+		this.rebuildInterval = rebuildInterval;
+		this.timer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("ChecksumMirror").daemon().factory());
+	}
+	
+	/**
+	 * Starts the initial load in the background; lookups simply miss until it is done.
+	 */
+	public void start()
+	{
+		timer.execute(this::sync);
+	}
+	
+	/**
+	 * @return true if the server is known to hold an asset with this hex (or base64) SHA-1 checksum.
+	 */
+	public boolean contains(String checksum)
+	{
+		var digest = decode(checksum);
+		if(digest == null) return false;
+		synchronized(this)
+		{
+			return digests.contains(digest, 0);
+		}
+	}
+	
+	/**
+	 * Records a checksum the server has just confirmed, for instance by accepting our upload.
+	 */
+	public void add(String checksum)
+	{
+		var digest = decode(checksum);
+		if(digest == null) return;
+		synchronized(this)
+		{
+			digests.add(digest, 0);
+			if(learnedDuringRebuild != null) learnedDuringRebuild.add(digest);
+		}
+	}
+	
+	public synchronized int size()
+	{
+		return digests.size();
+	}
+	
+	public boolean isLoaded()
+	{
+		return loaded;
+	}
+	
+	protected void sync()
+	{
+		try
+		{
+			if(syncedFrom == null || !Instant.now().isBefore(nextRebuild)) rebuild();
+			else refresh();
+		} catch(Exception e)
+		{
+			LOG.error("Failed to sync server checksums!", e);
+		} finally
+		{
+			if(!timer.isShutdown())
+				timer.schedule(this::sync, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Pages through all assets into a fresh set, then swaps it in together with whatever was learned meanwhile.
+	 */
+	protected void rebuild()
+			throws Exception
+	{
+		var start = Instant.now();
+		synchronized(this)
+		{
+			learnedDuringRebuild = new ArrayList<>();
+		}
+		
+		var fresh = new DigestSet(Math.max(1024, size()));
+		try
+		{
+			immich.assetChecksums(null, pageSize, digest -> fresh.add(digest, 0));
+		} catch(Exception e)
+		{
+			synchronized(this)
+			{
+				learnedDuringRebuild = null;
+			}
+			throw e;
+		}
+		
+		int size;
+		synchronized(this)
+		{
+			for(var digest : learnedDuringRebuild)
+				fresh.add(digest, 0);
+			learnedDuringRebuild = null;
+			digests = fresh;
+			size = fresh.size();
+		}
+		
+		syncedFrom = start.minus(OVERLAP);
+		nextRebuild = start.plus(rebuildInterval);
+		loaded = true;
+		LOG.info("Mirrored {} server checksums in {} ms.", size, Duration.between(start, Instant.now()).toMillis());
+	}
+	
+	/**
+	 * Adds the checksums of assets updated since the previous sync.
+	 */
+	protected void refresh()
+			throws Exception
+	{
+		var start = Instant.now();
+		immich.assetChecksums(syncedFrom, pageSize, digest ->
+		{
+			synchronized(this)
+			{
+				digests.add(digest, 0);
+			}
+		});
+		syncedFrom = start.minus(OVERLAP);
+	}
+	
+	/**
+	 * @return the 20-byte digest of a hex or base64 SHA-1 checksum, or null if it is neither.
+	 */
+	static byte @Nullable [] decode(String checksum)
+	{
+		try
+		{
+			if(checksum.length() == DigestSet.DIGEST * 2) return HexFormat.of().parseHex(checksum);
+			var digest = Base64.getDecoder().decode(checksum);
+			return digest.length == DigestSet.DIGEST ? digest : null;
+		} catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		timer.shutdownNow();
+	}
+	
+	/**
+	 * Open-addressed hash set of 20-byte digests, stored back to back in a single array.
+	 * SHA-1 output is uniformly distributed, so the first bytes of a digest serve as its hash.
+	 * Not thread-safe.
+	 */
+	static final class DigestSet
+	{
+		static final int DIGEST = 20;
+		
+		private byte[] slots;
+		private long[] used;
+		private int mask, size;
+		
+		DigestSet(int expected)
+		{
+			allocate(Integer.highestOneBit(Math.max(16, expected * 4 / 3) - 1) << 1);
+		}
+		
+		private void allocate(int capacity)
+		{
+			slots = new byte[capacity * DIGEST];
+			used = new long[(capacity + 63) >>> 6];
+			mask = capacity - 1;
+			size = 0;
+		}
+		
+		int size()
+		{
+			return size;
+		}
+		
+		boolean contains(byte[] digest, int offset)
+		{
+			for(int slot = home(digest, offset); isUsed(slot); slot = (slot + 1) & mask)
+				if(equalsAt(slot, digest, offset))
+					return true;
+			return false;
+		}
+		
+		/**
+		 * @return true if the digest was not in the set yet.
+		 */
+		boolean add(byte[] digest, int offset)
+		{
+			int slot = home(digest, offset);
+			for(; isUsed(slot); slot = (slot + 1) & mask)
+				if(equalsAt(slot, digest, offset))
+					return false;
+			
+			System.arraycopy(digest, offset, slots, slot * DIGEST, DIGEST);
+			used[slot >>> 6] |= 1L << slot;
+			if(++size * 4L > (mask + 1) * 3L) grow();
+			return true;
+		}
+		
+		private void grow()
+		{
+			var oldSlots = slots;
+			var oldUsed = used;
+			allocate((mask + 1) << 1);
+			for(int slot = 0; slot < oldSlots.length / DIGEST; slot++)
+				if((oldUsed[slot >>> 6] & 1L << slot) != 0L)
+					add(oldSlots, slot * DIGEST);
+		}
+		
+		private boolean isUsed(int slot)
+		{
+			return (used[slot >>> 6] & 1L << slot) != 0L;
+		}
+		
+		private boolean equalsAt(int slot, byte[] digest, int offset)
+		{
+			int start = slot * DIGEST;
+			return Arrays.equals(slots, start, start + DIGEST, digest, offset, offset + DIGEST);
+		}
+		
+		private int home(byte[] digest, int offset)
+		{
+			return ((digest[offset] & 0xFF) << 24 | (digest[offset + 1] & 0xFF) << 16 | (digest[offset + 2] & 0xFF) << 8 | digest[offset + 3] & 0xFF) & mask;
+		}
+	}
+}
\ No newline at end of file
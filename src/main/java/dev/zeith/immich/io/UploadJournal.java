@@ -0,0 +1,389 @@
+package dev.zeith.immich.io;
+
+import dev.zeith.immich.log.Log;
+import lombok.With;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, append-only log of where every file is in the upload pipeline.
+ * <p>
+ * Records are framed like the {@link ChecksumIndex} ({@code [int length][payload][int crc32]}) and written by a single
+ * writer thread that group-commits: everything queued while the previous {@code fsync} was running goes out in one
+ * write followed by one {@code fsync}. Callers that must not lose a transition (an asset that was uploaded, before its
+ * file is deleted) wait for the returned future; everything else is fire-and-forget.
+ * <p>
+ * On open the journal is replayed, so a restarted process can pick every file up at the stage it had reached.
+ * A file leaves the journal once it is deleted and, if it had to go into an album, the album assignment is confirmed.
+ */
+public class UploadJournal
+		implements Closeable
+{
+	private static final Log LOG = Log.of("UploadJournal");
+	
+	private static final int MAGIC = 0x494A4E31;
+	private static final int MAX_RECORD = 64 * 1024;
+	
+	public enum State
+	{
+		DISCOVERED,
+		HASHED,
+		CHECKED,
+		UPLOADED,
+		ALBUM_ASSIGNED,
+		DELETED
+	}
+	
+	/**
+	 * Latest known state of a file. {@code size} and {@code lastModified} are the file's attributes when the state was recorded,
+	 * so a file that changed since then is not mistaken for the one the journal talks about.
+	 */
+	@With
+	public record Entry(State state, long size, long lastModified, String checksum, String assetId, String album, boolean albumAssigned, boolean deleted)
+	{
+		public boolean isDone()
+		{
+			return deleted && (album.isEmpty() || assetId.isEmpty() || albumAssigned);
+		}
+		
+		public boolean matches(BasicFileAttributes attrs)
+		{
+			return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis();
+		}
+		
+		Entry apply(Record r)
+		{
+			return switch(r.state())
+			{
+				case ALBUM_ASSIGNED -> new Entry(state, size, lastModified, checksum, assetId, album, true, deleted);
+				case DELETED -> new Entry(State.DELETED, size, lastModified, checksum, assetId, album, albumAssigned, true);
+				default -> new Entry(
+						r.state(), r.size(), r.lastModified(),
+						r.checksum().isEmpty() ? checksum : r.checksum(),
+						r.assetId().isEmpty() ? assetId : r.assetId(),
+						r.album().isEmpty() ? album : r.album(),
+						albumAssigned, false
+				);
+			};
+		}
+		
+		static Entry of(Record r)
+		{
+			return new Entry(r.state(), r.size(), r.lastModified(), r.checksum(), r.assetId(), r.album(), false, false);
+		}
+	}
+	
+	private record Record(String path, State state, long size, long lastModified, String checksum, String assetId, String album)
+	{
+	}
+	
+	private record Pending(Record record, CompletableFuture<Void> committed)
+	{
+	}
+	
+	private final Path file;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	
+	private FileChannel channel;
+	private long records;
+	private volatile boolean closed;
+	
+	private UploadJournal(Path file)
+	{
+		this.file = file;
+		this.writer = Thread.ofPlatform().name("UploadJournal").daemon().unstarted(this::writeLoop);
+	}
+	
+	public static UploadJournal open(Path file)
+			throws IOException
+	{
+		var journal = new UploadJournal(file.toAbsolutePath());
+		journal.load();
+		journal.writer.start();
+		return journal;
+	}
+	
+	public int size()
+	{
+		return entries.size();
+	}
+	
+	public Map<String, Entry> entries()
+	{
+		return Collections.unmodifiableMap(entries);
+	}
+	
+	/**
+	 * @return the journal entry of the file if the file has not changed since its last recorded state.
+	 */
+	public @Nullable Entry lookup(File target)
+	{
+		var entry = entries.get(key(target));
+		if(entry == null) return null;
+		try
+		{
+			return entry.matches(Files.readAttributes(target.toPath(), BasicFileAttributes.class)) ? entry : null;
+		} catch(IOException e)
+		{
+			return null;
+		}
+	}
+	
+	public CompletableFuture<Void> discovered(File target)
+	{
+		return record(target, State.DISCOVERED, "", "", "");
+	}
+	
+	public CompletableFuture<Void> hashed(File target, String checksum)
+	{
+		return record(target, State.HASHED, checksum, "", "");
+	}
+	
+	public CompletableFuture<Void> checked(File target, String checksum)
+	{
+		return record(target, State.CHECKED, checksum, "", "");
+	}
+	
+	public CompletableFuture<Void> uploaded(File target, String assetId, @Nullable String album)
+	{
+		return record(target, State.UPLOADED, "", assetId, album == null ? "" : album);
+	}
+	
+	public CompletableFuture<Void> albumAssigned(File target)
+	{
+		if(!entries.containsKey(key(target))) return CompletableFuture.completedFuture(null);
+		return append(new Record(key(target), State.ALBUM_ASSIGNED, 0L, 0L, "", "", ""));
+	}
+	
+	public CompletableFuture<Void> deleted(File target)
+	{
+		if(!entries.containsKey(key(target))) return CompletableFuture.completedFuture(null);
+		return append(new Record(key(target), State.DELETED, 0L, 0L, "", "", ""));
+	}
+	
+	private CompletableFuture<Void> record(File target, State state, String checksum, String assetId, String album)
+	{
+		BasicFileAttributes attrs;
+		try
+		{
+			attrs = Files.readAttributes(target.toPath(), BasicFileAttributes.class);
+		} catch(IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+		return append(new Record(key(target), state, attrs.size(), attrs.lastModifiedTime().toMillis(), checksum, assetId, album));
+	}
+	
+	private CompletableFuture<Void> append(Record record)
+	{
+		if(closed) return CompletableFuture.failedFuture(new IOException("Upload journal is closed"));
+		apply(record);
+		var pending = new Pending(record, new CompletableFuture<>());
+		queue.add(pending);
+		return pending.committed();
+	}
+	
+	private void apply(Record r)
+	{
+		var entry = entries.compute(r.path(), (k, e) ->
+		{
+			// follow-up transitions of a file that already left the journal carry nothing to resume
+			if(e == null) return r.state() == State.ALBUM_ASSIGNED || r.state() == State.DELETED ? null : Entry.of(r);
+			return e.apply(r);
+		});
+		if(entry != null && entry.isDone()) entries.remove(r.path(), entry);
+	}
+	
+	private static String key(File target)
+	{
+		return target.getAbsoluteFile().toPath().normalize().toString();
+	}
+	
+	private void writeLoop()
+	{
+		List<Pending> batch = new ArrayList<>();
+		while(!closed || !queue.isEmpty())
+		{
+			try
+			{
+				var first = queue.poll(1L, TimeUnit.SECONDS);
+				if(first == null) continue;
+				batch.add(first);
+			} catch(InterruptedException e)
+			{
+				if(closed) continue;
+				break;
+			}
+			queue.drainTo(batch);
+			
+			try
+			{
+				var out = new ByteArrayOutputStream(batch.size() * 128);
+				var data = new DataOutputStream(out);
+				for(var p : batch) writeRecord(data, p.record());
+				
+				var buf = ByteBuffer.wrap(out.toByteArray());
+				while(buf.hasRemaining()) channel.write(buf);
+				channel.force(false);
+				records += batch.size();
+				
+				for(var p : batch) p.committed().complete(null);
+				
+				if(records > Math.max(4096L, entries.size() * 4L))
+					compact();
+			} catch(IOException e)
+			{
+				LOG.error("Failed to write upload journal {}", file, e);
+				for(var p : batch) p.committed().completeExceptionally(e);
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Rewrites the journal with one record per live entry. Only ever called from the writer thread, or before it starts.
+	 */
+	private void compact()
+			throws IOException
+	{
+		if(channel != null) channel.close();
+		
+		var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		long written = 0L;
+		try(var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))
+		{
+			out.writeInt(MAGIC);
+			for(var e : entries.entrySet())
+			{
+				var v = e.getValue();
+				writeRecord(out, new Record(e.getKey(), v.state(), v.size(), v.lastModified(), v.checksum(), v.assetId(), v.album()));
+				written++;
+				if(v.albumAssigned())
+				{
+					writeRecord(out, new Record(e.getKey(), State.ALBUM_ASSIGNED, 0L, 0L, "", "", ""));
+					written++;
+				}
+				if(v.deleted())
+				{
+					writeRecord(out, new Record(e.getKey(), State.DELETED, 0L, 0L, "", "", ""));
+					written++;
+				}
+			}
+		}
+		try(var ch = FileChannel.open(tmp, StandardOpenOption.WRITE))
+		{
+			ch.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		records = written;
+		channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+	
+	private static void writeRecord(DataOutputStream out, Record r)
+			throws IOException
+	{
+		var bytes = new ByteArrayOutputStream(128);
+		var payload = new DataOutputStream(bytes);
+		payload.writeByte(r.state().ordinal());
+		payload.writeUTF(r.path());
+		payload.writeLong(r.size());
+		payload.writeLong(r.lastModified());
+		payload.writeUTF(r.checksum());
+		payload.writeUTF(r.assetId());
+		payload.writeUTF(r.album());
+		
+		var crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+		out.writeInt((int) crc.getValue());
+	}
+	
+	private void load()
+			throws IOException
+	{
+		if(!Files.isRegularFile(file))
+		{
+			compact();
+			return;
+		}
+		
+		long valid = 0L;
+		long length;
+		try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			length = Files.size(file);
+			if(length >= 4 && in.readInt() == MAGIC)
+			{
+				valid = 4L;
+				while(valid + 8 <= length)
+				{
+					int len = in.readInt();
+					if(len <= 0 || len > MAX_RECORD || valid + 8 + len > length) break;
+					
+					byte[] payload = in.readNBytes(len);
+					int expected = in.readInt();
+					var crc = new CRC32();
+					crc.update(payload);
+					if((int) crc.getValue() != expected) break;
+					
+					var record = parse(payload);
+					if(record == null) break;
+					apply(record);
+					valid += 8 + len;
+					records++;
+				}
+			}
+		}
+		
+		if(valid < length)
+			LOG.warn("Upload journal {} is corrupt after byte {}, discarding {} trailing bytes.", file, valid, length - valid);
+		
+		// files that vanished while we were not running have nothing left to resume, unless they still owe an album assignment
+		entries.entrySet().removeIf(e -> e.getValue().assetId().isEmpty() && !Files.exists(Path.of(e.getKey())));
+		
+		compact();
+	}
+	
+	private static @Nullable Record parse(byte[] payload)
+	{
+		try
+		{
+			var in = new DataInputStream(new ByteArrayInputStream(payload));
+			int state = in.readUnsignedByte();
+			if(state >= State.values().length) return null;
+			var r = new Record(in.readUTF(), State.values()[state], in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readUTF());
+			return in.available() == 0 ? r : null;
+		} catch(IOException e)
+		{
+			return null;
+		}
+	}
+	
+	@Override
+	public void close()
+			throws IOException
+	{
+		closed = true;
+		try
+		{
+			writer.join();
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if(channel != null) channel.close();
+	}
+}
\ No newline at end of file
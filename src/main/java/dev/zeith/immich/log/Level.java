@@ -0,0 +1,31 @@
+package dev.zeith.immich.log;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+
+/**
+ * Log levels, from the most to the least important; enabling one enables every level before it.
+ */
+public enum Level
+{
+	ERROR,
+	WARN,
+	INFO,
+	DEBUG;
+	
+	/**
+	 * @return the level with this name in any case, or null if there is none.
+	 */
+	public static @Nullable Level parse(@Nullable String name)
+	{
+		if(name == null) return null;
+		try
+		{
+			return valueOf(name.trim().toUpperCase(Locale.ROOT));
+		} catch(IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,142 @@
+package dev.zeith.immich.log;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A source of log lines with a fixed context, such as a component or a folder path, that is printed with every line.
+ * <p>
+ * Messages are templates with up to three {@code {}} placeholders that the {@link LogWriter} fills in on its own thread,
+ * so a call never concatenates strings. Arguments are passed as they are and only rendered when written:
+ * {@link java.io.File} and {@link java.nio.file.Path} arguments as their file name, anything else with {@link String#valueOf(Object)}.
+ * An argument left over after the placeholders that is a {@link Throwable} is printed with its stack trace.
+ * A call for a disabled level returns right away and allocates nothing, provided its arguments need no boxing.
+ */
+public final class Log
+{
+	private final LogWriter writer;
+	private final String context;
+	
+	public Log(LogWriter writer, String context)
+	{
+		this.writer = writer;
+		this.context = context;
+	}
+	
+	public static Log of(String context)
+	{
+		return new Log(LogWriter.DEFAULT, context);
+	}
+	
+	public boolean isEnabled(Level level)
+	{
+		return writer.isEnabled(level);
+	}
+	
+	/**
+	 * @see LogWriter#isSummary()
+	 */
+	public boolean isSummary()
+	{
+		return writer.isSummary();
+	}
+	
+	public void log(Level level, String message)
+	{
+		if(writer.isEnabled(level)) writer.append(level, context, message, 0, null, null, null);
+	}
+	
+	public void log(Level level, String message, @Nullable Object a)
+	{
+		if(writer.isEnabled(level)) writer.append(level, context, message, 1, a, null, null);
+	}
+	
+	public void log(Level level, String message, @Nullable Object a, @Nullable Object b)
+	{
+		if(writer.isEnabled(level)) writer.append(level, context, message, 2, a, b, null);
+	}
+	
+	public void log(Level level, String message, @Nullable Object a, @Nullable Object b, @Nullable Object c)
+	{
+		if(writer.isEnabled(level)) writer.append(level, context, message, 3, a, b, c);
+	}
+	
+	public void error(String message)
+	{
+		log(Level.ERROR, message);
+	}
+	
+	public void error(String message, @Nullable Object a)
+	{
+		log(Level.ERROR, message, a);
+	}
+	
+	public void error(String message, @Nullable Object a, @Nullable Object b)
+	{
+		log(Level.ERROR, message, a, b);
+	}
+	
+	public void error(String message, @Nullable Object a, @Nullable Object b, @Nullable Object c)
+	{
+		log(Level.ERROR, message, a, b, c);
+	}
+	
+	public void warn(String message)
+	{
+		log(Level.WARN, message);
+	}
+	
+	public void warn(String message, @Nullable Object a)
+	{
+		log(Level.WARN, message, a);
+	}
+	
+	public void warn(String message, @Nullable Object a, @Nullable Object b)
+	{
+		log(Level.WARN, message, a, b);
+	}
+	
+	public void warn(String message, @Nullable Object a, @Nullable Object b, @Nullable Object c)
+	{
+		log(Level.WARN, message, a, b, c);
+	}
+	
+	public void info(String message)
+	{
+		log(Level.INFO, message);
+	}
+	
+	public void info(String message, @Nullable Object a)
+	{
+		log(Level.INFO, message, a);
+	}
+	
+	public void info(String message, @Nullable Object a, @Nullable Object b)
+	{
+		log(Level.INFO, message, a, b);
+	}
+	
+	public void info(String message, @Nullable Object a, @Nullable Object b, @Nullable Object c)
+	{
+		log(Level.INFO, message, a, b, c);
+	}
+	
+	public void debug(String message)
+	{
+		log(Level.DEBUG, message);
+	}
+	
+	public void debug(String message, @Nullable Object a)
+	{
+		log(Level.DEBUG, message, a);
+	}
+	
+	public void debug(String message, @Nullable Object a, @Nullable Object b)
+	{
+		log(Level.DEBUG, message, a, b);
+	}
+	
+	public void debug(String message, @Nullable Object a, @Nullable Object b, @Nullable Object c)
+	{
+		log(Level.DEBUG, message, a, b, c);
+	}
+}
\ No newline at end of file
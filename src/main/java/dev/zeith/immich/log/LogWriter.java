@@ -0,0 +1,218 @@
+package dev.zeith.immich.log;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes log lines to {@link System#out} from a background thread, so no caller ever waits for the console.
+ * <p>
+ * Callers claim a slot of a fixed ring buffer with a compare-and-set on the claim counter, fill it in place and publish it
+ * with a volatile write of its sequence number; the writer thread takes published slots in order, renders them and
+ * frees them again. Nothing is allocated per line on the calling side, and no lock is taken.
+ * When the buffer is full, lines are dropped rather than blocking the caller, and the writer reports how many.
+ * The writer polls every {@link #IDLE} while there is nothing to write.
+ */
+public class LogWriter
+		implements AutoCloseable
+{
+	public static final LogWriter DEFAULT = new LogWriter(8192);
+	
+	protected static final Duration IDLE = Duration.ofMillis(10L);
+	protected static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+	
+	protected static final class Slot
+	{
+		volatile long sequence = -1L;
+		
+		Level level;
+		long time;
+		String context;
+		String message;
+		int args;
+		Object a, b, c;
+		
+		void clear()
+		{
+			context = message = null;
+			a = b = c = null;
+		}
+	}
+	
+	private final Slot[] slots;
+	private final int mask;
+	private final AtomicLong claimed = new AtomicLong();
+	private volatile long consumed;
+	private final AtomicLong dropped = new AtomicLong();
+	
+	private volatile Level level = Level.INFO;
+	private volatile boolean summary;
+	
+	private final Thread thread;
+	private volatile boolean closed;
+	
+	/**
+	 * @param capacity lines the buffer holds, rounded up to a power of two.
+	 */
+	public LogWriter(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+		this.slots = new Slot[size];
+		for(int i = 0; i < size; i++)
+			slots[i] = new Slot();
+		this.mask = size - 1;
+		this.thread = Thread.ofPlatform().name("LogWriter").daemon().start(this::run);
+	}
+	
+	public boolean isEnabled(Level level)
+	{
+		return level.ordinal() <= this.level.ordinal();
+	}
+	
+	public void setLevel(Level level)
+	{
+		this.level = level;
+	}
+	
+	/**
+	 * In summary mode, folders log one line of counts per scan instead of a line per file.
+	 */
+	public boolean isSummary()
+	{
+		return summary;
+	}
+	
+	public void setSummary(boolean summary)
+	{
+		this.summary = summary;
+	}
+	
+	void append(Level level, String context, String message, int args, @Nullable Object a, @Nullable Object b, @Nullable Object c)
+	{
+		if(closed) return;
+		
+		long seq;
+		do
+		{
+			seq = claimed.get();
+			if(seq - consumed >= slots.length)
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+		} while(!claimed.compareAndSet(seq, seq + 1L));
+		
+		var slot = slots[(int) seq & mask];
+		slot.level = level;
+		slot.time = System.currentTimeMillis();
+		slot.context = context;
+		slot.message = message;
+		slot.args = args;
+		slot.a = a;
+		slot.b = b;
+		slot.c = c;
+		slot.sequence = seq;
+	}
+	
+	protected void run()
+	{
+		var line = new StringBuilder(256);
+		while(true)
+		{
+			boolean stop = closed;
+			if(drain(line) == 0)
+			{
+				if(stop) return;
+				LockSupport.parkNanos(IDLE.toNanos());
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of lines written.
+	 */
+	protected int drain(StringBuilder line)
+	{
+		var out = System.out;
+		int written = 0;
+		long next = consumed;
+		for(Slot slot; (slot = slots[(int) next & mask]).sequence == next; next++)
+		{
+			line.setLength(0);
+			try
+			{
+				var error = render(slot, line);
+				out.append(line).append(System.lineSeparator());
+				if(error != null) error.printStackTrace(out);
+			} catch(RuntimeException | StackOverflowError e)
+			{
+				// an argument whose toString() throws must cost its own line only, never the writer thread
+				out.append(line).append(" <failed to render: ").append(e.getClass().getName()).append('>').append(System.lineSeparator());
+			} finally
+			{
+				slot.clear();
+				consumed = next + 1L;
+			}
+			written++;
+		}
+		
+		long lost = dropped.getAndSet(0L);
+		if(lost > 0L) out.println("Dropped " + lost + " log lines, the log writer fell behind.");
+		if(written > 0 || lost > 0L) out.flush();
+		return written;
+	}
+	
+	/**
+	 * Renders a line as {@code HH:mm:ss.SSS LEVEL [context] message}.
+	 *
+	 * @return the leftover {@link Throwable} argument, if any.
+	 */
+	protected static @Nullable Throwable render(Slot slot, StringBuilder line)
+	{
+		TIME.formatTo(LocalTime.ofInstant(Instant.ofEpochMilli(slot.time), ZoneId.systemDefault()), line);
+		line.append(' ').append(slot.level.name()).append(" [").append(slot.context).append("] ");
+		
+		var message = slot.message;
+		int used = 0, from = 0;
+		for(int at; used < slot.args && (at = message.indexOf("{}", from)) >= 0; from = at + 2)
+		{
+			line.append(message, from, at);
+			appendArg(line, used == 0 ? slot.a : used == 1 ? slot.b : slot.c);
+			used++;
+		}
+		line.append(message, from, message.length());
+		
+		var last = slot.args == 0 ? null : slot.args == 1 ? slot.a : slot.args == 2 ? slot.b : slot.c;
+		return used < slot.args && last instanceof Throwable t ? t : null;
+	}
+	
+	protected static void appendArg(StringBuilder line, @Nullable Object arg)
+	{
+		if(arg instanceof File f) line.append(f.getName());
+		else if(arg instanceof Path p) line.append(p.getFileName());
+		else line.append(arg);
+	}
+	
+	/**
+	 * Writes out everything logged so far and stops the writer; later lines are dropped.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		LockSupport.unpark(thread);
+		try
+		{
+			thread.join(TimeUnit.SECONDS.toMillis(5L));
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
\ No newline at end of file
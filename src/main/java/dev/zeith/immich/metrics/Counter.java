@@ -0,0 +1,30 @@
+package dev.zeith.immich.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter
+		implements Metric
+{
+	private final LongAdder value = new LongAdder();
+	
+	public void inc()
+	{
+		value.increment();
+	}
+	
+	public void add(long amount)
+	{
+		value.add(amount);
+	}
+	
+	public long get()
+	{
+		return value.sum();
+	}
+	
+	@Override
+	public void write(MetricWriter out)
+	{
+		out.sample("", "", get());
+	}
+}
\ No newline at end of file
@@ -0,0 +1,25 @@
+package dev.zeith.immich.metrics;
+
+import java.util.function.LongSupplier;
+
+public class Gauge
+		implements Metric
+{
+	private final LongSupplier value;
+	
+	public Gauge(LongSupplier value)
+	{
+		this.value = value;
+	}
+	
+	public long get()
+	{
+		return value.getAsLong();
+	}
+	
+	@Override
+	public void write(MetricWriter out)
+	{
+		out.sample("", "", get());
+	}
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+package dev.zeith.immich.metrics;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram. Recording is a binary search over the bounds plus two {@link LongAdder} increments,
+ * so it never allocates and scales across threads.
+ */
+public class Histogram
+		implements Metric
+{
+	/**
+	 * Latency bounds from 1ms to 10 minutes, in nanoseconds.
+	 */
+	public static final long[] LATENCY_NANOS = {
+			1_000_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L, 250_000_000L, 500_000_000L,
+			1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L, 30_000_000_000L, 60_000_000_000L,
+			300_000_000_000L, 600_000_000_000L
+	};
+	
+	private final long[] bounds;
+	private final String[] boundLabels;
+	private final double unit;
+	private final LongAdder[] buckets;
+	private final LongAdder sum = new LongAdder();
+	
+	/**
+	 * @param bounds upper bucket bounds, ascending, in the unit values are recorded in.
+	 * @param unit   multiplier that converts recorded values into the exported unit (e.g. 1e-9 for nanoseconds to seconds).
+	 */
+	public Histogram(long[] bounds, double unit)
+	{
+		this.bounds = bounds.clone();
+		this.unit = unit;
+		this.boundLabels = new String[bounds.length];
+		for(int i = 0; i < bounds.length; i++)
+			boundLabels[i] = "le=\"" + BigDecimal.valueOf(bounds[i]).multiply(BigDecimal.valueOf(unit)).stripTrailingZeros().toPlainString() + "\"";
+		this.buckets = new LongAdder[bounds.length + 1];
+		for(int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+	}
+	
+	public static Histogram latency()
+	{
+		return new Histogram(LATENCY_NANOS, 1e-9);
+	}
+	
+	public void observe(long value)
+	{
+		int idx = Arrays.binarySearch(bounds, value);
+		if(idx < 0) idx = -idx - 1;
+		buckets[idx].increment();
+		sum.add(value);
+	}
+	
+	/**
+	 * Records the time elapsed since {@code startNanos}, as obtained from {@link System#nanoTime()}.
+	 */
+	public void observeSince(long startNanos)
+	{
+		observe(System.nanoTime() - startNanos);
+	}
+	
+	public long count()
+	{
+		long c = 0L;
+		for(LongAdder b : buckets) c += b.sum();
+		return c;
+	}
+	
+	public double sum()
+	{
+		return sum.sum() * unit;
+	}
+	
+	@Override
+	public void write(MetricWriter out)
+	{
+		long cumulative = 0L;
+		for(int i = 0; i < bounds.length; i++)
+		{
+			cumulative += buckets[i].sum();
+			out.sample("_bucket", boundLabels[i], cumulative);
+		}
+		cumulative += buckets[bounds.length].sum();
+		out.sample("_bucket", "le=\"+Inf\"", cumulative);
+		out.sample("_sum", "", sum());
+		out.sample("_count", "", cumulative);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,15 @@
+package dev.zeith.immich.metrics;
+
+public interface Metric
+{
+	void write(MetricWriter out);
+	
+	interface MetricWriter
+	{
+		/**
+		 * @param suffix appended to the family name, e.g. {@code _bucket}.
+		 * @param labels extra labels for this sample only, already rendered as {@code key="value"}.
+		 */
+		void sample(String suffix, String labels, double value);
+	}
+}
\ No newline at end of file
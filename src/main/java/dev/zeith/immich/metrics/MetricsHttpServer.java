@@ -0,0 +1,53 @@
+package dev.zeith.immich.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the registry on {@code http://127.0.0.1:<port>/metrics} in Prometheus text format.
+ */
+public class MetricsHttpServer
+		implements Closeable
+{
+	private final HttpServer server;
+	
+	public MetricsHttpServer(MetricsRegistry registry, int port)
+			throws IOException
+	{
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", exchange ->
+		{
+			try(exchange)
+			{
+				if(!"GET".equalsIgnoreCase(exchange.getRequestMethod()))
+				{
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				
+				var body = new StringWriter();
+				registry.writePrometheus(body);
+				var bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+				
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				exchange.getResponseBody().write(bytes);
+			}
+		});
+		server.start();
+	}
+	
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+	
+	@Override
+	public void close()
+	{
+		server.stop(0);
+	}
+}
\ No newline at end of file
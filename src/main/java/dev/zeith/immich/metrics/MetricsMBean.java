@@ -0,0 +1,84 @@
+package dev.zeith.immich.metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Exposes every sample of the registry as a read-only JMX attribute under {@code dev.zeith.immich:type=Metrics}.
+ * Histograms show up through their {@code _count} and {@code _sum} samples.
+ */
+public class MetricsMBean
+		implements DynamicMBean
+{
+	public static final String OBJECT_NAME = "dev.zeith.immich:type=Metrics";
+	
+	private final MetricsRegistry registry;
+	
+	public MetricsMBean(MetricsRegistry registry)
+	{
+		this.registry = registry;
+	}
+	
+	public static void register(MetricsRegistry registry)
+			throws JMException
+	{
+		var name = new ObjectName(OBJECT_NAME);
+		var server = ManagementFactory.getPlatformMBeanServer();
+		if(server.isRegistered(name)) server.unregisterMBean(name);
+		server.registerMBean(new MetricsMBean(registry), name);
+	}
+	
+	@Override
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException
+	{
+		var value = registry.snapshot().get(attribute);
+		if(value == null) throw new AttributeNotFoundException(attribute);
+		return value;
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes)
+	{
+		var snapshot = registry.snapshot();
+		var list = new AttributeList();
+		for(String a : attributes)
+		{
+			var value = snapshot.get(a);
+			if(value != null) list.add(new Attribute(a, value));
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws MBeanException
+	{
+		throw new MBeanException(new UnsupportedOperationException(actionName));
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo()
+	{
+		var attributes = registry
+				.snapshot()
+				.keySet()
+				.stream()
+				.map(k -> new MBeanAttributeInfo(k, Double.class.getName(), k, true, false, false))
+				.toArray(MBeanAttributeInfo[]::new);
+		return new MBeanInfo(getClass().getName(), "Immich auto uploader metrics", attributes, null, null, null);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,167 @@
+package dev.zeith.immich.metrics;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.*;
+
+/**
+ * Holds every metric family of the process. Handles are looked up once, when a component is constructed,
+ * and then recorded into directly, so the registry itself is never touched on the hot path.
+ */
+public class MetricsRegistry
+{
+	public static final MetricsRegistry DEFAULT = new MetricsRegistry();
+	
+	public enum Type
+	{
+		COUNTER,
+		GAUGE,
+		HISTOGRAM;
+		
+		public String prometheusName()
+		{
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+	
+	public record Family(String name, String help, Type type, Map<String, Metric> series)
+	{
+	}
+	
+	private final Map<String, Family> families = new ConcurrentHashMap<>();
+	
+	public Counter counter(String name, String help, String... labels)
+	{
+		return series(name, help, Type.COUNTER, labels, Counter::new);
+	}
+	
+	public Histogram latency(String name, String help, String... labels)
+	{
+		return series(name, help, Type.HISTOGRAM, labels, Histogram::latency);
+	}
+	
+	public Histogram histogram(String name, String help, long[] bounds, double unit, String... labels)
+	{
+		return series(name, help, Type.HISTOGRAM, labels, () -> new Histogram(bounds, unit));
+	}
+	
+	/**
+	 * Registers a gauge, replacing any previous gauge with the same name and labels.
+	 */
+	public Gauge gauge(String name, String help, LongSupplier value, String... labels)
+	{
+		var gauge = new Gauge(value);
+		family(name, help, Type.GAUGE).series().put(renderLabels(labels), gauge);
+		return gauge;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <M extends Metric> M series(String name, String help, Type type, String[] labels, Supplier<M> factory)
+	{
+		return (M) family(name, help, type).series().computeIfAbsent(renderLabels(labels), k -> factory.get());
+	}
+	
+	private Family family(String name, String help, Type type)
+	{
+		var family = families.computeIfAbsent(name, n -> new Family(n, help, type, new ConcurrentHashMap<>()));
+		if(family.type() != type)
+			throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type().prometheusName());
+		return family;
+	}
+	
+	/**
+	 * Renders label pairs ({@code key, value, key, value...}) in Prometheus syntax.
+	 */
+	public static String renderLabels(String... labels)
+	{
+		if(labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must come in key/value pairs");
+		var sb = new StringBuilder();
+		for(int i = 0; i < labels.length; i += 2)
+		{
+			if(i > 0) sb.append(',');
+			sb.append(labels[i]).append("=\"");
+			for(char c : labels[i + 1].toCharArray())
+			{
+				switch(c)
+				{
+					case '\\' -> sb.append("\\\\");
+					case '"' -> sb.append("\\\"");
+					case '\n' -> sb.append("\\n");
+					default -> sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+	
+	public Collection<Family> families()
+	{
+		return families.values();
+	}
+	
+	/**
+	 * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+	 */
+	public void writePrometheus(Writer out)
+			throws IOException
+	{
+		var sorted = new ArrayList<>(families.values());
+		sorted.sort(Comparator.comparing(Family::name));
+		
+		for(var family : sorted)
+		{
+			out.write("# HELP " + family.name() + " " + family.help().replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+			out.write("# TYPE " + family.name() + " " + family.type().prometheusName() + "\n");
+			
+			var series = new TreeMap<>(family.series());
+			for(var e : series.entrySet())
+			{
+				var labels = e.getKey();
+				e.getValue().write((suffix, extra, value) ->
+				{
+					try
+					{
+						out.write(family.name());
+						out.write(suffix);
+						var all = labels.isEmpty() ? extra : extra.isEmpty() ? labels : labels + "," + extra;
+						if(!all.isEmpty()) out.write("{" + all + "}");
+						out.write(" ");
+						out.write(formatValue(value));
+						out.write("\n");
+					} catch(IOException ex)
+					{
+						throw new UncheckedIOException(ex);
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Flat view of all samples, keyed like their Prometheus series ({@code name_suffix{labels}}).
+	 */
+	public Map<String, Double> snapshot()
+	{
+		Map<String, Double> values = new TreeMap<>();
+		for(var family : families.values())
+			for(var e : family.series().entrySet())
+			{
+				var labels = e.getKey();
+				e.getValue().write((suffix, extra, value) ->
+				{
+					if(!extra.isEmpty()) return;
+					values.put(family.name() + suffix + (labels.isEmpty() ? "" : "{" + labels + "}"), value);
+				});
+			}
+		return values;
+	}
+	
+	private static String formatValue(double value)
+	{
+		if(value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+		return Double.toString(value);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+package dev.zeith.immich;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileNameRulesTest
+{
+	private static final ZoneId UTC = ZoneOffset.UTC;
+	
+	@Test
+	void parsesDateAndTime()
+	{
+		var rules = FileNameRules.compile(List.of(), Map.of("(?<time>\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2})", "yyyy-MM-dd_HH-mm-ss"), UTC);
+		assertEquals(Instant.parse("2024-01-02T03:04:05Z"), rules.timestamp("VRChat_2024-01-02_03-04-05.png"));
+	}
+	
+	@Test
+	void parsesDateOnlyAsStartOfDay()
+	{
+		var rules = FileNameRules.compile(List.of(), Map.of("IMG-(?<time>\\d{8})-WA", "yyyyMMdd"), UTC);
+		assertEquals(Instant.parse("2023-07-14T00:00:00Z"), rules.timestamp("IMG-20230714-WA0003.jpg"));
+	}
+	
+	@Test
+	void parsesTwelveHourClock()
+	{
+		var rules = FileNameRules.compile(List.of(), Map.of("(?<time>\\d{4}-\\d{2}-\\d{2} \\d{2}\\.\\d{2}\\.\\d{2} [AP]M)", "yyyy-MM-dd hh.mm.ss a"), UTC);
+		assertEquals(Instant.parse("2022-03-04T13:14:15Z"), rules.timestamp("Screenshot 2022-03-04 01.14.15 PM.png"));
+	}
+	
+	@Test
+	void skipsNamesWithoutTime()
+	{
+		var rules = FileNameRules.compile(List.of(), Map.of("IMG-(?<time>\\d{8})-WA", "yyyyMMdd"), UTC);
+		assertNull(rules.timestamp("holiday.jpg"));
+	}
+	
+	@Test
+	void failsOnUnparsableTime()
+	{
+		var rules = FileNameRules.compile(List.of(), Map.of("IMG-(?<time>\\d{8})-WA", "yyyyMMdd"), UTC);
+		assertThrows(DateTimeParseException.class, () -> rules.timestamp("IMG-20231340-WA0001.jpg"));
+	}
+	
+	@Test
+	void matchesAnchoredPatterns()
+	{
+		var rules = FileNameRules.compile(List.of("^VRChat_.*\\.png$"), Map.of(), UTC);
+		assertTrue(rules.matches("VRChat_2024-01-02_03-04-05.png"));
+		assertFalse(rules.matches("VRChat_2024-01-02_03-04-05.jpg"));
+		assertFalse(rules.matches("Other_2024.png"));
+	}
+}
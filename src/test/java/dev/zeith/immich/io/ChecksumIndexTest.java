@@ -0,0 +1,165 @@
+package dev.zeith.immich.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChecksumIndexTest
+{
+	@TempDir
+	Path dir;
+	
+	@Test
+	void roundTrip()
+			throws IOException
+	{
+		var indexFile = dir.resolve("checksums.idx");
+		var first = media("first.jpg");
+		var second = media("second.jpg");
+		
+		String firstHash, secondHash;
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			firstHash = index.checksum(first);
+			secondHash = index.checksum(second);
+			assertEquals(Hashers.SHA1.genHash(first), firstHash);
+		}
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			assertEquals(2, index.size());
+			assertEquals(firstHash, index.lookup(first));
+			assertEquals(secondHash, index.lookup(second));
+		}
+	}
+	
+	@Test
+	void forgetsRemovedAndStaleEntries()
+			throws IOException
+	{
+		var indexFile = dir.resolve("checksums.idx");
+		var removed = media("removed.jpg");
+		var changed = media("changed.jpg");
+		var kept = media("kept.jpg");
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			index.checksum(removed);
+			index.checksum(changed);
+			index.checksum(kept);
+			index.forget(removed);
+		}
+		Files.writeString(changed.toPath(), "something else entirely");
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			assertEquals(1, index.size());
+			assertNull(index.lookup(removed));
+			assertNull(index.lookup(changed));
+			assertNotNull(index.lookup(kept));
+		}
+	}
+	
+	@Test
+	void cutsTruncatedTailAndStaysAppendable()
+			throws IOException
+	{
+		var indexFile = dir.resolve("checksums.idx");
+		var first = media("first.jpg");
+		var second = media("second.jpg");
+		var third = media("third.jpg");
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			index.checksum(first);
+			index.checksum(second);
+		}
+		
+		// a crash in the middle of the last record
+		try(var ch = FileChannel.open(indexFile, StandardOpenOption.WRITE))
+		{
+			ch.truncate(ch.size() - 3);
+		}
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			assertEquals(1, index.size());
+			assertNotNull(index.lookup(first));
+			assertNull(index.lookup(second));
+			index.checksum(third);
+		}
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			assertEquals(2, index.size());
+			assertNotNull(index.lookup(first));
+			assertNotNull(index.lookup(third));
+		}
+	}
+	
+	@Test
+	void discardsEverythingFromCorruptRecordOn()
+			throws IOException
+	{
+		var indexFile = dir.resolve("checksums.idx");
+		var first = media("first.jpg");
+		var second = media("second.jpg");
+		var third = media("third.jpg");
+		
+		long afterFirst;
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			index.checksum(first);
+			index.flush();
+			afterFirst = Files.size(indexFile);
+			index.checksum(second);
+			index.checksum(third);
+		}
+		
+		// corrupt the payload of the second record, so its CRC no longer matches
+		var bytes = Files.readAllBytes(indexFile);
+		bytes[(int) afterFirst + 8] ^= 0x01;
+		Files.write(indexFile, bytes);
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			assertEquals(1, index.size());
+			assertNotNull(index.lookup(first));
+			assertNull(index.lookup(second));
+			assertNull(index.lookup(third));
+		}
+		assertEquals(afterFirst, Files.size(indexFile));
+	}
+	
+	@Test
+	void startsOverOnForeignFile()
+			throws IOException
+	{
+		var indexFile = dir.resolve("checksums.idx");
+		Files.writeString(indexFile, "not an index at all");
+		var file = media("file.jpg");
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			assertEquals(0, index.size());
+			index.checksum(file);
+		}
+		
+		try(var index = ChecksumIndex.open(indexFile, Hashers.SHA1))
+		{
+			assertEquals(1, index.size());
+			assertNotNull(index.lookup(file));
+		}
+	}
+	
+	private File media(String name)
+			throws IOException
+	{
+		return Files.writeString(dir.resolve(name), name).toFile();
+	}
+}
@@ -0,0 +1,262 @@
+package dev.zeith.immich.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import javax.imageio.ImageIO;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PngRecompressorTest
+{
+	@ParameterizedTest(name = "color type {0}, {1} bits")
+	@CsvSource({
+			"0, 1", "0, 2", "0, 4", "0, 8", "0, 16",
+			"2, 8", "2, 16",
+			"3, 1", "3, 2", "3, 4", "3, 8",
+			"4, 8", "4, 16",
+			"6, 8", "6, 16"
+	})
+	void roundTripsEveryColorType(int colorType, int bitDepth)
+			throws IOException
+	{
+		// an odd width leaves padding bits at the end of the rows of sub-byte depths
+		var png = new Png(37, 23, bitDepth, colorType).data(Integer.MAX_VALUE).end();
+		assertRoundTrip(png);
+	}
+	
+	@Test
+	void roundTripsMultipleDataChunks()
+			throws IOException
+	{
+		var png = new Png(64, 48, 8, 2).data(100).end();
+		assertTrue(count(png, "IDAT") > 1);
+		assertRoundTrip(png);
+	}
+	
+	@Test
+	void copiesAncillaryChunksByteForByte()
+			throws IOException
+	{
+		var png = new Png(40, 30, 8, 6)
+				.chunk("gAMA", ByteBuffer.allocate(4).putInt(45455).array())
+				.chunk("tEXt", "Comment\0taken in a world far away".getBytes(StandardCharsets.ISO_8859_1))
+				.data(200)
+				.chunk("tIME", new byte[] {0x07, (byte) 0xE9, 4, 13, 3, 9, 28})
+				.chunk("prVt", new byte[] {1, 2, 3, 4, 5})
+				.end();
+		
+		var out = assertRoundTrip(png);
+		assertEquals(List.of("IHDR", "gAMA", "tEXt", "IDAT", "tIME", "prVt", "IEND"), types(out));
+	}
+	
+	@Test
+	void leavesInterlacedImagesAlone()
+	{
+		var png = new Png(16, 16, 8, 2, 1).data(Integer.MAX_VALUE).end();
+		assertNull(PngRecompressor.recompress(png));
+	}
+	
+	@Test
+	void leavesSplitImageDataAlone()
+	{
+		var png = new Png(64, 48, 8, 0)
+				.data(300, "tEXt", "Comment\0in between".getBytes(StandardCharsets.ISO_8859_1))
+				.end();
+		assertEquals(List.of("IHDR", "IDAT", "tEXt", "IDAT"), types(png).subList(0, 4));
+		assertNull(PngRecompressor.recompress(png));
+	}
+	
+	@Test
+	void rejectsOtherData()
+	{
+		assertNull(PngRecompressor.recompress("not a png at all".getBytes(StandardCharsets.US_ASCII)));
+	}
+	
+	/**
+	 * Recompresses the image and checks that it decodes to the same pixels, that every chunk but the image data
+	 * is left as it was, and that the output is the same every time.
+	 *
+	 * @return the recompressed image.
+	 */
+	private static byte[] assertRoundTrip(byte[] png)
+			throws IOException
+	{
+		var out = PngRecompressor.recompress(png);
+		assertNotNull(out);
+		assertTrue(out.length < png.length, "recompressed to " + out.length + " of " + png.length + " bytes");
+		assertArrayEquals(out, PngRecompressor.recompress(png));
+		
+		assertEquals(ancillary(png), ancillary(out));
+		
+		var before = ImageIO.read(new ByteArrayInputStream(png));
+		var after = ImageIO.read(new ByteArrayInputStream(out));
+		assertNotNull(after);
+		assertEquals(before.getType(), after.getType());
+		int w = before.getWidth(), h = before.getHeight();
+		assertArrayEquals(before.getRaster().getPixels(0, 0, w, h, (int[]) null), after.getRaster().getPixels(0, 0, w, h, (int[]) null));
+		return out;
+	}
+	
+	private static int count(byte[] png, String type)
+	{
+		return (int) types(png).stream().filter(type::equals).count();
+	}
+	
+	private static List<String> types(byte[] png)
+	{
+		List<String> types = new ArrayList<>();
+		forEachChunk(png, (type, chunk) -> types.add(type));
+		return types;
+	}
+	
+	/**
+	 * @return every chunk but the image data, as hex, checking the CRC of each one on the way.
+	 */
+	private static List<String> ancillary(byte[] png)
+	{
+		List<String> chunks = new ArrayList<>();
+		forEachChunk(png, (type, chunk) ->
+		{
+			if(!type.equals("IDAT")) chunks.add(HexFormat.of().formatHex(chunk));
+		});
+		return chunks;
+	}
+	
+	private static void forEachChunk(byte[] png, ChunkVisitor visitor)
+	{
+		var buf = ByteBuffer.wrap(png);
+		buf.position(8);
+		while(buf.hasRemaining())
+		{
+			int start = buf.position();
+			int length = buf.getInt();
+			var type = new String(png, start + 4, 4, StandardCharsets.US_ASCII);
+			
+			var crc = new CRC32();
+			crc.update(png, start + 4, length + 4);
+			buf.position(start + 8 + length);
+			assertEquals((int) crc.getValue(), buf.getInt(), "CRC of " + type);
+			
+			visitor.visit(type, Arrays.copyOfRange(png, start, buf.position()));
+		}
+	}
+	
+	private interface ChunkVisitor
+	{
+		void visit(String type, byte[] chunk);
+	}
+	
+	/**
+	 * Writes a PNG the way a quick encoder would: no filtering and the fastest deflate, so there is something to gain.
+	 */
+	private static class Png
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final int width, height, bitDepth, colorType;
+		
+		Png(int width, int height, int bitDepth, int colorType)
+		{
+			this(width, height, bitDepth, colorType, 0);
+		}
+		
+		/**
+		 * Writes the header, and for indexed images a palette with an entry for every possible index.
+		 */
+		Png(int width, int height, int bitDepth, int colorType, int interlace)
+		{
+			this.width = width;
+			this.height = height;
+			this.bitDepth = bitDepth;
+			this.colorType = colorType;
+			out.writeBytes(PngRecompressor.SIGNATURE);
+			chunk("IHDR", ByteBuffer.allocate(13).putInt(width).putInt(height).put((byte) bitDepth).put((byte) colorType).put((byte) 0).put((byte) 0).put((byte) interlace).array());
+			
+			if(colorType != 3) return;
+			var plte = new byte[3 << bitDepth];
+			for(int i = 0; i < plte.length; i++)
+				plte[i] = (byte) (i * 7);
+			chunk("PLTE", plte);
+		}
+		
+		Png chunk(String type, byte[] data)
+		{
+			var header = ByteBuffer.allocate(8).putInt(data.length).put(type.getBytes(StandardCharsets.US_ASCII)).array();
+			var crc = new CRC32();
+			crc.update(header, 4, 4);
+			crc.update(data);
+			out.writeBytes(header);
+			out.writeBytes(data);
+			out.writeBytes(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+			return this;
+		}
+		
+		/**
+		 * Writes the image data in chunks of at most {@code chunkSize} bytes.
+		 */
+		Png data(int chunkSize)
+		{
+			return data(chunkSize, null, null);
+		}
+		
+		/**
+		 * Like {@link #data(int)}, with another chunk between the first two data chunks if not null.
+		 */
+		Png data(int chunkSize, String between, byte[] betweenData)
+		{
+			var deflated = deflate(scanlines());
+			for(int off = 0; off < deflated.length; off += chunkSize)
+			{
+				chunk("IDAT", Arrays.copyOfRange(deflated, off, Math.min(deflated.length, off + chunkSize)));
+				if(off == 0 && between != null) chunk(between, betweenData);
+			}
+			return this;
+		}
+		
+		byte[] end()
+		{
+			chunk("IEND", new byte[0]);
+			return out.toByteArray();
+		}
+		
+		/**
+		 * Smooth gradients with some noise, unfiltered; every bit pattern is a valid sample of every color type and depth.
+		 */
+		byte[] scanlines()
+		{
+			int channels = switch(colorType)
+			{
+				case 2 -> 3;
+				case 4 -> 2;
+				case 6 -> 4;
+				default -> 1;
+			};
+			int rowBytes = (width * channels * bitDepth + 7) / 8;
+			var raw = new byte[(rowBytes + 1) * height];
+			var random = new Random(31L * colorType + bitDepth);
+			for(int y = 0; y < height; y++)
+				for(int i = 0; i < rowBytes; i++)
+					raw[y * (rowBytes + 1) + 1 + i] = (byte) (i / channels + 2 * y + (random.nextInt(8) == 0 ? random.nextInt(16) : 0));
+			return raw;
+		}
+		
+		static byte[] deflate(byte[] data)
+		{
+			var deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(data);
+			deflater.finish();
+			var out = new ByteArrayOutputStream();
+			var buf = new byte[4096];
+			while(!deflater.finished())
+				out.write(buf, 0, deflater.deflate(buf));
+			deflater.end();
+			return out.toByteArray();
+		}
+	}
+}
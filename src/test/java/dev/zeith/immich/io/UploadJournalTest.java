@@ -0,0 +1,214 @@
+package dev.zeith.immich.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadJournalTest
+{
+	private static final String CHECKSUM = "0123456789abcdef0123456789abcdef01234567";
+	
+	@TempDir
+	Path dir;
+	
+	@Test
+	void replaysEveryStateAfterReopen()
+			throws IOException
+	{
+		var journalFile = dir.resolve("journal.log");
+		var checked = media("checked.jpg");
+		var uploaded = media("uploaded.jpg");
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			journal.discovered(checked);
+			journal.hashed(checked, CHECKSUM);
+			journal.checked(checked, CHECKSUM);
+			journal.hashed(uploaded, CHECKSUM);
+			journal.uploaded(uploaded, "asset", "album").join();
+		}
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			assertEquals(2, journal.size());
+			
+			var entry = journal.lookup(checked);
+			assertNotNull(entry);
+			assertEquals(UploadJournal.State.CHECKED, entry.state());
+			assertEquals(CHECKSUM, entry.checksum());
+			
+			entry = journal.lookup(uploaded);
+			assertNotNull(entry);
+			assertEquals(UploadJournal.State.UPLOADED, entry.state());
+			assertEquals(CHECKSUM, entry.checksum());
+			assertEquals("asset", entry.assetId());
+			assertEquals("album", entry.album());
+			assertFalse(entry.albumAssigned());
+		}
+	}
+	
+	@Test
+	void dropsFinishedFiles()
+			throws IOException
+	{
+		var journalFile = dir.resolve("journal.log");
+		var file = media("done.jpg");
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			journal.uploaded(file, "asset", "album");
+			journal.albumAssigned(file);
+			journal.deleted(file).join();
+			assertEquals(0, journal.size());
+		}
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			assertEquals(0, journal.size());
+		}
+	}
+	
+	@Test
+	void lookupMissesChangedFiles()
+			throws IOException
+	{
+		var journalFile = dir.resolve("journal.log");
+		var file = media("changed.jpg");
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			journal.checked(file, CHECKSUM).join();
+			assertTrue(file.setLastModified(file.lastModified() - 60_000L));
+			assertNull(journal.lookup(file));
+		}
+	}
+	
+	@Test
+	void discardsTornTail()
+			throws IOException
+	{
+		var journalFile = dir.resolve("journal.log");
+		var first = media("first.jpg");
+		var second = media("second.jpg");
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			journal.checked(first, CHECKSUM).join();
+		}
+		
+		// a record whose write was cut short by a crash: its length promises more than the file holds
+		try(var out = new DataOutputStream(Files.newOutputStream(journalFile, StandardOpenOption.APPEND)))
+		{
+			out.writeInt(200);
+			out.write(new byte[17]);
+		}
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			assertEquals(1, journal.size());
+			assertNotNull(journal.lookup(first));
+			journal.checked(second, CHECKSUM).join();
+		}
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			assertEquals(2, journal.size());
+			assertNotNull(journal.lookup(first));
+			assertNotNull(journal.lookup(second));
+		}
+	}
+	
+	@Test
+	void discardsRecordsFromCrcMismatchOn()
+			throws IOException
+	{
+		var journalFile = dir.resolve("journal.log");
+		var first = media("first.jpg");
+		var second = media("second.jpg");
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			journal.checked(first, CHECKSUM).join();
+			journal.checked(second, CHECKSUM).join();
+		}
+		
+		// flip a byte inside the payload of the last record, just before its CRC
+		var bytes = Files.readAllBytes(journalFile);
+		bytes[bytes.length - 5] ^= 0x40;
+		Files.write(journalFile, bytes);
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			assertEquals(1, journal.size());
+			assertNotNull(journal.lookup(first));
+			assertNull(journal.lookup(second));
+		}
+	}
+	
+	@Test
+	void ignoresForeignFiles()
+			throws IOException
+	{
+		var journalFile = dir.resolve("journal.log");
+		Files.writeString(journalFile, "not a journal");
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			assertEquals(0, journal.size());
+			journal.checked(media("file.jpg"), CHECKSUM).join();
+		}
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			assertEquals(1, journal.size());
+		}
+	}
+	
+	@Test
+	void compactsSupersededRecords()
+			throws IOException
+	{
+		var journalFile = dir.resolve("journal.log");
+		var file = media("busy.jpg");
+		
+		long recordSize;
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			long empty = Files.size(journalFile);
+			journal.hashed(file, CHECKSUM).join();
+			recordSize = Files.size(journalFile) - empty;
+			
+			CompletableFuture<Void> last = null;
+			for(int i = 0; i < 10_000; i++)
+				last = journal.hashed(file, String.format("%040x", i));
+			last.join();
+			journal.checked(file, CHECKSUM).join();
+		}
+		
+		// without compaction the log would hold every one of the 10 002 records
+		assertTrue(Files.size(journalFile) < 5_000L * recordSize, "journal was not compacted");
+		
+		try(var journal = UploadJournal.open(journalFile))
+		{
+			assertEquals(1, journal.size());
+			var entry = journal.lookup(file);
+			assertNotNull(entry);
+			assertEquals(UploadJournal.State.CHECKED, entry.state());
+			assertEquals(CHECKSUM, entry.checksum());
+		}
+	}
+	
+	/**
+	 * Creates a file to journal; entries of files that are gone and never got an asset are dropped on open.
+	 */
+	private File media(String name)
+			throws IOException
+	{
+		return Files.writeString(dir.resolve(name), name).toFile();
+	}
+}
@@ -0,0 +1,92 @@
+package dev.zeith.immich.log;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogWriterTest
+{
+	private PrintStream console;
+	private ByteArrayOutputStream captured;
+	
+	@BeforeEach
+	void captureConsole()
+	{
+		console = System.out;
+		captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+	}
+	
+	@AfterEach
+	void restoreConsole()
+	{
+		System.setOut(console);
+	}
+	
+	@Test
+	void writesFormattedLines()
+	{
+		var writer = new LogWriter(16);
+		writer.append(Level.INFO, "Ctx", "Uploaded {} of {}", 2, 3, 5, null);
+		writer.close();
+		
+		assertTrue(output().contains("INFO [Ctx] Uploaded 3 of 5"), output());
+	}
+	
+	@Test
+	void survivesArgumentsThatFailToRender()
+	{
+		var writer = new LogWriter(16);
+		var broken = new Object()
+		{
+			@Override
+			public String toString()
+			{
+				throw new IllegalStateException("broken");
+			}
+		};
+		writer.append(Level.WARN, "Ctx", "Bad {}", 1, broken, null, null);
+		for(int i = 0; i < 40; i++)
+		{
+			writer.append(Level.INFO, "Ctx", "Line {}", 1, i, null, null);
+			// more lines than the buffer holds, so a dead writer would start dropping them
+			if(i % 8 == 7) waitForDrain();
+		}
+		writer.close();
+		
+		var out = output();
+		assertTrue(out.contains("WARN [Ctx] Bad  <failed to render: java.lang.IllegalStateException>"), out);
+		assertTrue(out.contains("INFO [Ctx] Line 39"), out);
+		assertFalse(out.contains("Dropped"), out);
+	}
+	
+	@Test
+	void dropsLinesAfterClose()
+	{
+		var writer = new LogWriter(16);
+		writer.close();
+		writer.append(Level.INFO, "Ctx", "Too late", 0, null, null, null);
+		
+		waitForDrain();
+		assertFalse(output().contains("Too late"), output());
+	}
+	
+	private void waitForDrain()
+	{
+		try
+		{
+			Thread.sleep(50L);
+		} catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private String output()
+	{
+		return captured.toString(StandardCharsets.UTF_8);
+	}
+}